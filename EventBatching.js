@@ -0,0 +1,90 @@
+'use strict';
+
+import {DeviceEventEmitter, NativeModules} from 'react-native';
+
+const {WebRTCModule} = NativeModules;
+
+/**
+ * The event through which the native side delivers batched events.
+ */
+const BATCH_EVENT = 'webrtcEventBatch';
+
+/**
+ * The event emitted by the native side when its backlog of undelivered events
+ * overflows, which means that the JS thread has been stalled.
+ */
+const OVERFLOW_EVENT = 'webrtcEventQueueOverflow';
+
+type EventBatchingOptions = {
+    enabled?: boolean;
+    flushOnFrame?: boolean;
+    maxBatchSize?: number;
+    maxDelayMs?: number;
+    maxInFlightBatches?: number;
+    maxQueuedEvents?: number;
+    pauseReadsOnOverflow?: boolean;
+    maxPauseMs?: number;
+}
+
+/**
+ * Controls the (Android only) batching of native events. While enabled, the
+ * native side delivers its events in arrays, either once per frame or when a
+ * size or time threshold is hit, and they are dispatched here to the regular
+ * listeners in their original order.
+ *
+ * Every batch is acknowledged once it has been dispatched. While the JS thread
+ * is stalled the native side holds the events back in a bounded backlog:
+ * mute changes drop the oldest pending one, the others (stats deltas
+ * included) are kept and, with <tt>pauseReadsOnOverflow</tt>, the reading of
+ * data channel messages (aggregated or not) is paused for up to
+ * <tt>maxPauseMs</tt> in total per overflow (default 1000). The pause blocks
+ * the native thread which delivers the callbacks of all PeerConnections, so
+ * their ICE, connection state and stats events are held back just as long:
+ * keep <tt>maxPauseMs</tt> short when other PeerConnections are live. Listen
+ * to <tt>EventBatching.OVERFLOW_EVENT</tt> with the <tt>DeviceEventEmitter</tt>
+ * to detect such stalls.
+ */
+class EventBatching {
+    OVERFLOW_EVENT = OVERFLOW_EVENT;
+
+    constructor() {
+        DeviceEventEmitter.addListener(BATCH_EVENT, batch => {
+            try {
+                for (let i = 0; i < batch.length; i++) {
+                    DeviceEventEmitter.emit(batch[i].event, batch[i].data);
+                }
+            } finally {
+                if (WebRTCModule.eventBatchDelivered) {
+                    WebRTCModule.eventBatchDelivered();
+                }
+            }
+        });
+    }
+
+    /**
+     * Enables, disables or tunes event batching.
+     */
+    configure(options: EventBatchingOptions) {
+        if (WebRTCModule.setEventBatching) {
+            WebRTCModule.setEventBatching(options);
+        }
+    }
+
+    /**
+     * Resolves with the counters of the delivered batches: number of batches
+     * and events, average and largest batch size, a histogram of batch sizes
+     * in powers of two and the backlog counters (queued, high-water mark,
+     * dropped and parked events, overflows and the time reads were paused).
+     */
+    getStats(reset: boolean = false) {
+        return new Promise(resolve => {
+            if (WebRTCModule.getEventBatchingStats) {
+                WebRTCModule.getEventBatchingStats(reset, resolve);
+            } else {
+                resolve(null);
+            }
+        });
+    }
+}
+
+export default new EventBatching();
@@ -1,6 +1,7 @@
 'use strict';
 
 import {NativeModules, DeviceEventEmitter} from 'react-native';
+import BlobManager from 'react-native/Libraries/Blob/BlobManager';
 import base64 from 'base64-js';
 import EventTarget from 'event-target-shim';
 import MessageEvent from './MessageEvent';
@@ -15,10 +16,25 @@ type RTCDataChannelInit = {
   protocol?: string;
   negotiated?: boolean;
   id?: number;
+  // Android only: deliver the received messages in batches of up to
+  // maxDelayMs milliseconds or maxBytes bytes.
+  aggregation?: {maxDelayMs?: number, maxBytes?: number};
+  // Android only: hold the sends natively while more than maxBufferedAmount
+  // bytes are buffered instead of overflowing the SCTP send buffer.
+  sendQueue?: boolean;
+  maxBufferedAmount?: number;
+  // Android only: split messages larger than chunkSize into chunks and
+  // reassemble them on receipt. Both ends have to enable it.
+  framing?: {chunkSize?: number, maxReassemblyBytes?: number, timeoutMs?: number};
+  // Android only: deflate the sent messages of at least threshold bytes.
+  // Implies framing; the other end has to enable framing to inflate them.
+  compression?: {threshold?: number, level?: number};
   // deprecated:
   maxRetransmitTime?: number,
 };
 
+type BinaryType = 'arraybuffer' | 'blob';
+
 type RTCDataChannelState =
   'connecting' |
   'open' |
@@ -35,13 +51,60 @@ const DATA_CHANNEL_EVENTS = [
 
 class ResourceInUse extends Error {}
 
+type FileTransferOptions = {
+  chunkSize?: number;
+  offset?: number;
+  length?: number;
+  maxBufferedAmount?: number;
+  progressIntervalMs?: number;
+  onProgress?: (bytesSent: number, totalBytes: number) => void;
+};
+
+type FileSinkOptions = {
+  append?: boolean;
+  preallocate?: number;
+  expectedBytes?: number;
+  checksum?: string;
+  progressIntervalMs?: number;
+  onProgress?: (bytesWritten: number) => void;
+};
+
+let nextFileTransferId = 0;
+
+/**
+ * Returns the number of bytes of the UTF-8 encoding of a string.
+ */
+function utf8ByteLength(s: string): number {
+  let length = s.length;
+  for (let i = 0; i < s.length; i++) {
+    const c = s.charCodeAt(i);
+    if (c >= 0xd800 && c <= 0xdbff && i + 1 < s.length) {
+      // A surrogate pair: 4 bytes for 2 chars.
+      length += 2;
+      i++;
+    } else if (c >= 0x800) {
+      length += 2;
+    } else if (c >= 0x80) {
+      length += 1;
+    }
+  }
+  return length;
+}
+
 export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
 
   _peerConnectionId: number;
+  // What the native side refers to this channel by: a handle assigned when
+  // the channel was created where supported, the id otherwise.
+  _handle: number;
 
-  binaryType: 'arraybuffer' = 'arraybuffer'; // we only support 'arraybuffer'
+  _binaryType: BinaryType = 'arraybuffer';
   bufferedAmount: number = 0;
-  bufferedAmountLowThreshold: number = 0;
+  _bufferedAmountLowThreshold: number = 0;
+  // The number of bytes passed to send() so far. The native side reports the
+  // number it has seen along with the buffered amount so that the sends
+  // still on their way can be accounted for.
+  _sentBytes: number = 0;
   id: number;
   label: string;
   maxPacketLifeTime: ?number = null;
@@ -75,6 +138,8 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
     // Consequently, dataChannelDict is not optional for RTCDataChannel's
     // constructor.
     this.id = ('id' in dataChannelDict) ? dataChannelDict.id : -1;
+    this._handle
+      = ('handle' in dataChannelDict) ? dataChannelDict.handle : this.id;
     this.ordered = !!dataChannelDict.ordered;
     this.maxPacketLifeTime = dataChannelDict.maxPacketLifeTime;
     this.maxRetransmits = dataChannelDict.maxRetransmits;
@@ -84,11 +149,81 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
     this._registerEvents();
   }
 
-  send(data: string | ArrayBuffer | ArrayBufferView) {
-    if (typeof data === 'string') {
-      WebRTCModule.dataChannelSend(this._peerConnectionId, this.id, data, 'text');
+  get bufferedAmountLowThreshold(): number {
+    return this._bufferedAmountLowThreshold;
+  }
+
+  set bufferedAmountLowThreshold(threshold: number) {
+    this._bufferedAmountLowThreshold = threshold;
+    if (WebRTCModule.dataChannelSetBufferedAmountLowThreshold) {
+      WebRTCModule.dataChannelSetBufferedAmountLowThreshold(
+        this._peerConnectionId, this._handle, threshold);
+    }
+  }
+
+  _onSend(byteLength: number) {
+    // Only the native modules which report bufferedAmount back (Android) let
+    // it drain; elsewhere it stays at 0 rather than growing forever.
+    if (!WebRTCModule.dataChannelSetBufferedAmountLowThreshold) {
       return;
     }
+    this._sentBytes += byteLength;
+    this.bufferedAmount += byteLength;
+  }
+
+  _updateBufferedAmount(ev: {bufferedAmount: number, sentBytes: number}) {
+    this.bufferedAmount = ev.bufferedAmount + (this._sentBytes - ev.sentBytes);
+  }
+
+  get binaryType(): BinaryType {
+    return this._binaryType;
+  }
+
+  /**
+   * With 'blob', binary messages are exchanged with the native side by handle
+   * instead of Base64 (Android only). It is up to the receiver to close() the
+   * Blobs it is done with.
+   */
+  set binaryType(binaryType: BinaryType) {
+    if (binaryType !== 'arraybuffer' && binaryType !== 'blob') {
+      return;
+    }
+    if (binaryType === 'blob'
+        && !(WebRTCModule.dataChannelSetBinaryType && BlobManager.isAvailable)) {
+      return;
+    }
+    this._binaryType = binaryType;
+    if (WebRTCModule.dataChannelSetBinaryType) {
+      WebRTCModule.dataChannelSetBinaryType(
+        this._peerConnectionId, this._handle, binaryType);
+    }
+  }
+
+  send(data: string | ArrayBuffer | ArrayBufferView | Blob) {
+    const message = this._prepareSend(data);
+    if (message.type === 'blob') {
+      WebRTCModule.dataChannelSendBlob(this._peerConnectionId, this._handle, message.data);
+    } else {
+      WebRTCModule.dataChannelSend(this._peerConnectionId, this._handle, message.data, message.type);
+    }
+  }
+
+  /**
+   * Converts data to be sent into the form in which it crosses the bridge and
+   * accounts for it in bufferedAmount.
+   */
+  _prepareSend(data: string | ArrayBuffer | ArrayBufferView | Blob) {
+    if (typeof data === 'string') {
+      this._onSend(utf8ByteLength(data));
+      return {handle: this._handle, data, type: 'text'};
+    }
+
+    if (typeof Blob !== 'undefined'
+        && data instanceof Blob
+        && WebRTCModule.dataChannelSendBlob) {
+      this._onSend(data.size);
+      return {handle: this._handle, data: data.data, type: 'blob'};
+    }
 
     // Safely convert the buffer object to an Uint8Array for base64-encoding
     if (ArrayBuffer.isView(data)) {
@@ -96,9 +231,179 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
     } else if (data instanceof ArrayBuffer) {
       data = new Uint8Array(data);
     } else {
-      throw new TypeError('Data must be either string, ArrayBuffer, or ArrayBufferView');
+      throw new TypeError('Data must be either string, ArrayBuffer, ArrayBufferView, or Blob');
     }
-    WebRTCModule.dataChannelSend(this._peerConnectionId, this.id, base64.fromByteArray(data), 'binary');
+    this._onSend(data.byteLength);
+    return {handle: this._handle, data: base64.fromByteArray(data), type: 'binary'};
+  }
+
+  /**
+   * Applies the native options of createDataChannel's config (aggregation,
+   * sendQueue, maxBufferedAmount, framing and compression) to this channel, typically one
+   * announced by the remote peer (Android only).
+   */
+  setOptions(options: RTCDataChannelInit) {
+    if (WebRTCModule.dataChannelSetOptions) {
+      WebRTCModule.dataChannelSetOptions(this._peerConnectionId, this._handle, options);
+    }
+  }
+
+  /**
+   * Streams a local file over this channel natively, in binary messages of
+   * chunkSize bytes, without passing its contents through JS (Android only).
+   * Returns the promise of the end of the transfer, which resolves with the
+   * number of bytes sent, along with a function to cancel it.
+   */
+  sendFile(path: string, options: FileTransferOptions = {}) {
+    const transferId = nextFileTransferId++;
+    const {onProgress, ...nativeOptions} = options;
+    let subscriptions = [];
+    const unsubscribe = () => {
+      subscriptions.forEach(e => e.remove());
+      subscriptions = [];
+    };
+    const promise = new Promise((resolve, reject) => {
+      if (!WebRTCModule.dataChannelSendFile) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      subscriptions = [
+        DeviceEventEmitter.addListener('dataChannelFileTransferProgress', ev => {
+          if (ev.peerConnectionId === this._peerConnectionId
+              && ev.transferId === transferId
+              && onProgress) {
+            onProgress(ev.bytesSent, ev.totalBytes);
+          }
+        }),
+        DeviceEventEmitter.addListener('dataChannelFileTransferEnded', ev => {
+          if (ev.peerConnectionId !== this._peerConnectionId
+              || ev.transferId !== transferId) {
+            return;
+          }
+          unsubscribe();
+          if (ev.state === 'completed') {
+            resolve(ev.bytesSent);
+          } else {
+            reject(new Error(ev.error || ev.state));
+          }
+        }),
+      ];
+      WebRTCModule.dataChannelSendFile(
+        this._peerConnectionId,
+        this._handle,
+        transferId,
+        path,
+        nativeOptions,
+        (success, error) => {
+          if (!success) {
+            unsubscribe();
+            reject(new Error(error));
+          }
+        });
+    });
+    const cancel = () => {
+      if (WebRTCModule.dataChannelCancelFileTransfer) {
+        WebRTCModule.dataChannelCancelFileTransfer(this._peerConnectionId, transferId);
+      }
+    };
+    return {promise, cancel};
+  }
+
+  /**
+   * Writes the binary messages received by this channel to a local file
+   * natively instead of dispatching them (Android only). Text messages are
+   * still dispatched. The returned promise resolves with {state, bytesWritten,
+   * checksum} when the sink ends: once expectedBytes have been written, when
+   * the channel closes or when detachFileSink() is called.
+   */
+  attachFileSink(path: string, options: FileSinkOptions = {}) {
+    const {onProgress, ...nativeOptions} = options;
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.dataChannelAttachFileSink) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      let subscriptions = [
+        DeviceEventEmitter.addListener('dataChannelFileSinkProgress', ev => {
+          if (this._isOwnEvent(ev) && onProgress) {
+            onProgress(ev.bytesWritten);
+          }
+        }),
+        DeviceEventEmitter.addListener('dataChannelFileSinkEnded', ev => {
+          if (!this._isOwnEvent(ev)) {
+            return;
+          }
+          unsubscribe();
+          if (ev.state === 'failed') {
+            reject(new Error(ev.error));
+          } else {
+            resolve(ev);
+          }
+        }),
+      ];
+      const unsubscribe = () => {
+        subscriptions.forEach(e => e.remove());
+        subscriptions = [];
+      };
+      WebRTCModule.dataChannelAttachFileSink(
+        this._peerConnectionId,
+        this._handle,
+        path,
+        nativeOptions,
+        (success, error) => {
+          if (!success) {
+            unsubscribe();
+            reject(new Error(error));
+          }
+        });
+    });
+  }
+
+  /**
+   * Ends the file sink once the messages received so far have been written.
+   * The promise returned by attachFileSink() resolves with the result.
+   */
+  detachFileSink() {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.dataChannelDetachFileSink) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      WebRTCModule.dataChannelDetachFileSink(
+        this._peerConnectionId,
+        this._handle,
+        (success, data) => {
+          if (success) {
+            resolve(data);
+          } else {
+            reject(new Error(data));
+          }
+        });
+    });
+  }
+
+  /**
+   * Resolves with the batch size and latency statistics of a channel created
+   * with an aggregation config (Android only).
+   */
+  getAggregationStats(reset: boolean = false) {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.dataChannelGetAggregationStats) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      WebRTCModule.dataChannelGetAggregationStats(
+        this._peerConnectionId,
+        this._handle,
+        reset,
+        (success, data) => {
+          if (success) {
+            resolve(data);
+          } else {
+            reject(new Error(data));
+          }
+        });
+    });
   }
 
   close() {
@@ -106,7 +411,7 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
       return;
     }
     this.readyState = 'closing';
-    WebRTCModule.dataChannelClose(this._peerConnectionId, this.id);
+    WebRTCModule.dataChannelClose(this._peerConnectionId, this._handle);
   }
 
   _unregisterEvents() {
@@ -117,10 +422,14 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
   _registerEvents() {
     this._subscriptions = [
       DeviceEventEmitter.addListener('dataChannelStateChanged', ev => {
-        this.readyState = ev.state;
-        if (ev.peerConnectionId !== this._peerConnectionId) {
+        if (!this._isOwnEvent(ev)) {
           return;
         }
+        this.readyState = ev.state;
+        if (typeof ev.handle === 'number' && ev.id !== -1) {
+          // Known once negotiated for the channels created without an id.
+          this.id = ev.id;
+        }
         if (this.readyState === 'open') {
           this.dispatchEvent(new RTCDataChannelEvent('open', {channel: this}));
         } else if (this.readyState === 'closed') {
@@ -129,15 +438,54 @@ export default class RTCDataChannel extends EventTarget(DATA_CHANNEL_EVENTS) {
         }
       }),
       DeviceEventEmitter.addListener('dataChannelReceiveMessage', ev => {
-        if (ev.peerConnectionId !== this._peerConnectionId) {
+        if (!this._isOwnEvent(ev)) {
+          return;
+        }
+        this._dispatchMessage(ev.type, ev.data);
+      }),
+      // The changes are rate-limited natively; crossing the low threshold is
+      // reported right away, along with the buffered amount.
+      DeviceEventEmitter.addListener('dataChannelBufferedAmountChanged', ev => {
+        if (!this._isOwnEvent(ev)) {
+          return;
+        }
+        this._updateBufferedAmount(ev);
+      }),
+      DeviceEventEmitter.addListener('dataChannelBufferedAmountLow', ev => {
+        if (!this._isOwnEvent(ev)) {
+          return;
+        }
+        if ('bufferedAmount' in ev) {
+          this._updateBufferedAmount(ev);
+        }
+        this.dispatchEvent(
+          new RTCDataChannelEvent('bufferedamountlow', {channel: this}));
+      }),
+      DeviceEventEmitter.addListener('dataChannelReceiveMessages', ev => {
+        if (!this._isOwnEvent(ev)) {
           return;
         }
-        let data = ev.data;
-        if (ev.type === 'binary') {
-          data = base64.toByteArray(ev.data).buffer;
+        const messages = ev.messages;
+        for (let i = 0; i < messages.length; i++) {
+          this._dispatchMessage(messages[i].type, messages[i].data);
         }
-        this.dispatchEvent(new MessageEvent('message', {data}));
       }),
     ];
   }
+
+  _isOwnEvent(ev: Object): boolean {
+    return ev.peerConnectionId === this._peerConnectionId
+      && (typeof ev.handle === 'number'
+        ? ev.handle === this._handle
+        : ev.id === this.id);
+  }
+
+  _dispatchMessage(type: string, data: any) {
+    if (type === 'binary') {
+      data = base64.toByteArray(data).buffer;
+    } else if (type === 'blob') {
+      data = BlobManager.createFromOptions(data);
+    }
+    this.dispatchEvent(new MessageEvent('message', {data}));
+  }
 }
@@ -1,7 +1,7 @@
 'use strict';
 
 import EventTarget from 'event-target-shim';
-import {DeviceEventEmitter, NativeModules} from 'react-native';
+import {DeviceEventEmitter, NativeModules, Platform} from 'react-native';
 
 import MediaStream from './MediaStream';
 import MediaStreamEvent from './MediaStreamEvent';
@@ -18,6 +18,23 @@ import * as RTCUtil from './RTCUtil';
 
 const {WebRTCModule} = NativeModules;
 
+type StatsFilter = {
+  types?: Array<string>;
+  values?: Array<string>;
+  trackIds?: Array<string>;
+};
+
+/**
+ * Whether the native side refers to data channels by a handle assigned when
+ * they are created rather than by their id, which may only be negotiated
+ * later. The layout of the handles is that of DataChannelRegistry.java:
+ * generation << 17 | slot << 1 | remote.
+ */
+const DATA_CHANNEL_HANDLES = Platform.OS === 'android';
+const DATA_CHANNEL_SLOT_SHIFT = 1;
+const DATA_CHANNEL_GENERATION_SHIFT = 17;
+const DATA_CHANNEL_GENERATION_MASK = (1 << 14) - 1;
+
 type RTCSignalingState =
     'stable' |
     'have-local-offer' |
@@ -88,12 +105,23 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
   _subscriptions: Array<any>;
   _transceivers: Array<any> = [];
   _senders: Array<any> = [];
+  _pendingIceCandidates: Array<any> = [];
+  _statsSubscription: any = null;
+  _qualitySubscription: any = null;
 
   /**
    * The RTCDataChannel.id allocator of this RTCPeerConnection.
    */
   _dataChannelIds: Set = new Set();
 
+  /**
+   * The allocator of the handles of the data channels created by this
+   * RTCPeerConnection: the next generation of each slot and the free slots.
+   * A slot is freed once its channel has been seen closed.
+   */
+  _dataChannelGenerations: Array<number> = [];
+  _freeDataChannelSlots: Array<number> = [];
+
   constructor(configuration) {
     super();
     this._peerConnectionId = nextPeerConnectionId++;
@@ -240,17 +268,94 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
 
   addIceCandidate(candidate) {
     return new Promise((resolve, reject) => {
+      const json = candidate.toJSON ? candidate.toJSON() : candidate;
+      if (!WebRTCModule.peerConnectionAddICECandidates) {
+        this._addIceCandidates([{candidate: json, resolve, reject}]);
+        return;
+      }
+      // Candidates added within the same tick (e.g. a bundle delivered by the
+      // signaling server) cross the bridge together.
+      const pending = this._pendingIceCandidates;
+      pending.push({candidate: json, resolve, reject});
+      if (pending.length === 1) {
+        Promise.resolve().then(() => {
+          this._pendingIceCandidates = [];
+          this._addIceCandidates(pending);
+        });
+      }
+    });
+  }
+
+  _addIceCandidates(pending) {
+    const settle = (p, successful) => {
+      if (successful) {
+        p.resolve();
+      } else {
+        // XXX: This should be OperationError
+        p.reject(new Error('Failed to add ICE candidate'));
+      }
+    };
+    if (pending.length === 1) {
+      const p = pending[0];
       WebRTCModule.peerConnectionAddICECandidate(
-          candidate.toJSON ? candidate.toJSON() : candidate,
+          p.candidate,
           this._peerConnectionId,
-          (successful) => {
-            if (successful) {
-              resolve()
-            } else {
-              // XXX: This should be OperationError
-              reject(new Error('Failed to add ICE candidate'));
-            }
-          });
+          successful => settle(p, successful));
+    } else {
+      WebRTCModule.peerConnectionAddICECandidates(
+          pending.map(p => p.candidate),
+          this._peerConnectionId,
+          results => pending.forEach((p, i) => settle(p, results[i])));
+    }
+  }
+
+  /**
+   * Sends messages over data channels of this peer connection in order, with
+   * a single bridge call on Android. A message which cannot be sent does not
+   * stop the rest. Resolves with {sent, failed, failures}, the failures being
+   * {index, error} objects.
+   */
+  sendDataChannelBatch(messages: Array<{channel: RTCDataChannel, data: any}>) {
+    if (!WebRTCModule.dataChannelSendBatch) {
+      const failures = [];
+      messages.forEach(({channel, data}, index) => {
+        try {
+          channel.send(data);
+        } catch (e) {
+          failures.push({index, error: e.message});
+        }
+      });
+      return Promise.resolve({
+        sent: messages.length - failures.length,
+        failed: failures.length,
+        failures
+      });
+    }
+    // Messages which cannot even be prepared are failures of their own; the
+    // native failures refer to the indices of the prepared ones.
+    const prepared = [];
+    const indices = [];
+    const failures = [];
+    messages.forEach(({channel, data}, index) => {
+      try {
+        prepared.push(channel._prepareSend(data));
+        indices.push(index);
+      } catch (e) {
+        failures.push({index, error: e.message});
+      }
+    });
+    return new Promise(resolve => {
+      WebRTCModule.dataChannelSendBatch(prepared, this._peerConnectionId, result => {
+        result.failures.forEach(({index, error}) => {
+          failures.push({index: indices[index], error});
+        });
+        failures.sort((a, b) => a.index - b.index);
+        resolve({
+          sent: result.sent,
+          failed: messages.length - result.sent,
+          failures
+        });
+      });
     });
   }
 
@@ -258,39 +363,317 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
     return this.getStats();
   }
 
-  getStats(track) {
+  /**
+   * @param {MediaStreamTrack} track - an optional track
+   * @param {StatsFilter} filter - an optional {types, values, trackIds} spec
+   * of the reports and values to get, each an array of strings. It is applied
+   * natively (Android only) so the rest never crosses the bridge; elsewhere
+   * it is ignored.
+   */
+  getStats(track, filter?: StatsFilter) {
     // NOTE: This returns a Promise but the format of the results is still
     // the "legacy" one. The native side (in Oobj-C) doesn't yet support the
     // new format: https://bugs.chromium.org/p/webrtc/issues/detail?id=6872
     return new Promise((resolve, reject) => {
-      WebRTCModule.peerConnectionGetStats(
-          (track && track.id) || '',
+      const callback = (success, data) => {
+        if (success) {
+          // On both Android and iOS it is faster to construct a single
+          // JSON string representing the array of StatsReports and have it
+          // pass through the React Native bridge rather than the array of
+          // StatsReports. While the implementations do try to be faster in
+          // general, the stress is on being faster to pass through the React
+          // Native bridge which is a bottleneck that tends to be visible in
+          // the UI when there is congestion involving UI-related passing.
+          try {
+            const stats = JSON.parse(data);
+            resolve(stats);
+          } catch (e) {
+            resolve(null);
+            // React Native app will display en error when if the Promise is rejected. Resolve with null object and web sdk will ignore the stats object
+            // reject(e);
+          }
+        } else {
+          resolve(null);
+          // reject(new Error(data));
+        }
+      };
+      if (filter && WebRTCModule.peerConnectionGetFilteredStats) {
+        WebRTCModule.peerConnectionGetFilteredStats(
+            (track && track.id) || '',
+            this._peerConnectionId,
+            filter,
+            callback);
+      } else {
+        WebRTCModule.peerConnectionGetStats(
+            (track && track.id) || '',
+            this._peerConnectionId,
+            callback);
+      }
+    });
+  }
+
+  /**
+   * Gets the stats of this RTCPeerConnection in the format of the WebRTC
+   * specification (Android only): a Map of the stats by id whose values keep
+   * their types. Given a track, only the stats of the RTP streams of its
+   * sender (for a local track) or receiver (for a remote one) and the stats
+   * they reference are included.
+   *
+   * @param {MediaStreamTrack} selector - an optional track
+   * @param {string} scope - 'sender' or 'receiver', if the track could be
+   * either
+   * @param {StatsFilter} filter - an optional spec of the stats and members
+   * to get, as for getStats
+   */
+  getStatsReport(
+      selector?: ?MediaStreamTrack,
+      scope?: ?('sender' | 'receiver'),
+      filter?: StatsFilter) {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.peerConnectionGetStatsReport) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      const options = {};
+      if (selector) {
+        options.trackId = selector.id;
+      }
+      if (scope) {
+        options.scope = scope;
+      }
+      if (filter) {
+        options.filter = filter;
+      }
+      WebRTCModule.peerConnectionGetStatsReport(
           this._peerConnectionId,
+          options,
           (success, data) => {
-            if (success) {
-              // On both Android and iOS it is faster to construct a single
-              // JSON string representing the array of StatsReports and have it
-              // pass through the React Native bridge rather than the array of
-              // StatsReports. While the implementations do try to be faster in
-              // general, the stress is on being faster to pass through the React
-              // Native bridge which is a bottleneck that tends to be visible in
-              // the UI when there is congestion involving UI-related passing.
-              try {
-                const stats = JSON.parse(data);
-                resolve(stats);
-              } catch (e) {
-                resolve(null);
-                // React Native app will display en error when if the Promise is rejected. Resolve with null object and web sdk will ignore the stats object
-                // reject(e);
-              }
-            } else {
-              resolve(null);
-              // reject(new Error(data));
+            if (!success) {
+              reject(new Error(data));
+              return;
+            }
+            try {
+              const stats = JSON.parse(data);
+              resolve(new Map(Object.keys(stats).map(id => [id, stats[id]])));
+            } catch (e) {
+              reject(e);
+            }
+          });
+    });
+  }
+
+  /**
+   * Gets the stats of several RTCPeerConnections in one native call (Android
+   * only), in the format of getStatsReport. The stats are collected
+   * concurrently; an RTCPeerConnection whose stats do not arrive within
+   * options.timeoutMs milliseconds (2000 by default) does not hold up the
+   * others and maps to null, as does a closed one.
+   *
+   * @param {Array<RTCPeerConnection>} peerConnections
+   * @param {Object} options - timeoutMs and filter, as for getStatsReport
+   * @returns a Promise of a Map of the reports by RTCPeerConnection
+   */
+  static getStatsReports(
+      peerConnections: Array<RTCPeerConnection>,
+      options?: { timeoutMs?: number, filter?: StatsFilter }) {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.getStatsReports) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      WebRTCModule.getStatsReports(
+          {
+            ...options,
+            ids: peerConnections.map(pc => pc._peerConnectionId)
+          },
+          (success, data) => {
+            if (!success) {
+              reject(new Error(data));
+              return;
+            }
+            try {
+              const { reports } = JSON.parse(data);
+              resolve(new Map(peerConnections.map(pc => {
+                const stats = reports[pc._peerConnectionId];
+                return [
+                  pc,
+                  stats
+                    ? new Map(Object.keys(stats).map(id => [id, stats[id]]))
+                    : null
+                ];
+              })));
+            } catch (e) {
+              reject(e);
             }
           });
     });
   }
 
+  /**
+   * Subscribes to the stats of this RTCPeerConnection, sampled natively every
+   * intervalMs milliseconds (Android only). Only the values which changed
+   * since the previous sample cross the bridge; the native side also adds the
+   * bitrate (in bits per second) of the inbound-rtp and outbound-rtp stats and
+   * the packetLossRate (between 0 and 1) of the inbound-rtp ones. The listener
+   * is invoked with a Map of the stats by id, kept up to date with the
+   * changes, and the change itself: {timestamp, full, reports, removed}.
+   * options.filter limits the stats as for getStatsReport.
+   * Subscribing again replaces the previous subscription.
+   *
+   * @returns a function which ends the subscription
+   */
+  subscribeStats(
+      options: {intervalMs?: number, filter?: StatsFilter},
+      listener: (report: Map<string, Object>, delta: Object) => void) {
+    if (!WebRTCModule.peerConnectionSubscribeStats) {
+      throw new Error('Not supported');
+    }
+    if (this._statsSubscription) {
+      this._statsSubscription.remove();
+    }
+    const report = new Map();
+    const subscription
+      = DeviceEventEmitter.addListener('peerConnectionStatsDelta', ev => {
+        if (ev.id !== this._peerConnectionId) {
+          return;
+        }
+        if (ev.full) {
+          report.clear();
+        }
+        Object.keys(ev.reports).forEach(id => {
+          const stats = report.get(id);
+          if (stats) {
+            Object.assign(stats, ev.reports[id]);
+          } else {
+            report.set(id, Object.assign({id}, ev.reports[id]));
+          }
+        });
+        ev.removed.forEach(id => report.delete(id));
+        listener(report, ev);
+      });
+    this._statsSubscription = subscription;
+    WebRTCModule.peerConnectionSubscribeStats(
+        this._peerConnectionId,
+        options || {});
+    return () => {
+      if (this._statsSubscription === subscription) {
+        this._statsSubscription = null;
+        subscription.remove();
+        WebRTCModule.peerConnectionUnsubscribeStats(this._peerConnectionId);
+      }
+    };
+  }
+
+  /**
+   * Starts keeping a fixed-size native history of selected stats of this
+   * RTCPeerConnection, sampled every config.intervalMs milliseconds (Android
+   * only). Each of config.series is a {type, member, name, trackId,
+   * aggregate, rate} object: the member of the stats of the type, summed
+   * (or 'min', 'max', 'avg') over the stats which have it and, with rate,
+   * turned into a per-second rate. config.capacity is the number of samples
+   * kept (600 by default, i.e. 10 minutes at 1 sample per second).
+   */
+  startStatsHistory(config: {
+      intervalMs?: number,
+      capacity?: number,
+      series: Array<Object>}) {
+    if (!WebRTCModule.peerConnectionStartStatsHistory) {
+      throw new Error('Not supported');
+    }
+    WebRTCModule.peerConnectionStartStatsHistory(this._peerConnectionId, config);
+  }
+
+  stopStatsHistory() {
+    if (WebRTCModule.peerConnectionStopStatsHistory) {
+      WebRTCModule.peerConnectionStopStatsHistory(this._peerConnectionId);
+    }
+  }
+
+  /**
+   * Downsamples the stats history between query.from and query.to
+   * (milliseconds since the epoch, the whole history by default) into
+   * query.buckets (60 by default) buckets of equal duration.
+   *
+   * @returns a Promise of {from, to, bucketMs, timestamps, series}, series
+   * mapping the name of each series to {min, max, avg} arrays with one
+   * element (null if no sample fell in it) per bucket
+   */
+  queryStatsHistory(query?: {from?: number, to?: number, buckets?: number}) {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.peerConnectionQueryStatsHistory) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      WebRTCModule.peerConnectionQueryStatsHistory(
+          this._peerConnectionId,
+          query || {},
+          (success, data) => success ? resolve(data) : reject(new Error(data)));
+    });
+  }
+
+  /**
+   * Writes the stats history to a CSV file at the given path or file:// URL.
+   */
+  dumpStatsHistory(path: string) {
+    return new Promise((resolve, reject) => {
+      if (!WebRTCModule.peerConnectionDumpStatsHistory) {
+        reject(new Error('Not supported'));
+        return;
+      }
+      WebRTCModule.peerConnectionDumpStatsHistory(
+          this._peerConnectionId,
+          path,
+          (success, error) => success ? resolve() : reject(new Error(error)));
+    });
+  }
+
+  /**
+   * Estimates natively the quality of the tracks of this RTCPeerConnection
+   * from its stats, sampled every options.intervalMs milliseconds (Android
+   * only). Each sent and received track gets a MOS-like score between 1 and
+   * 4.5, averaged over the last options.window samples (5 by default), and
+   * a level: the number of options.thresholds (ascending, [2.5, 3.5] by
+   * default) the score is at or above. The listener is invoked only when the
+   * level of a track changes, by more than options.hysteresis (0.1 by
+   * default) past the threshold, with {trackId, kind, direction, score,
+   * level, previousLevel, metrics}. Starting again replaces the previous
+   * estimation.
+   *
+   * @returns a function which stops the estimation
+   */
+  startQualityEstimation(
+      options: {
+        intervalMs?: number,
+        thresholds?: Array<number>,
+        window?: number,
+        hysteresis?: number},
+      listener: (ev: Object) => void) {
+    if (!WebRTCModule.peerConnectionStartQualityEstimation) {
+      throw new Error('Not supported');
+    }
+    if (this._qualitySubscription) {
+      this._qualitySubscription.remove();
+    }
+    const subscription
+      = DeviceEventEmitter.addListener('peerConnectionQualityChanged', ev => {
+        if (ev.id === this._peerConnectionId) {
+          listener(ev);
+        }
+      });
+    this._qualitySubscription = subscription;
+    WebRTCModule.peerConnectionStartQualityEstimation(
+        this._peerConnectionId,
+        options || {});
+    return () => {
+      if (this._qualitySubscription === subscription) {
+        this._qualitySubscription = null;
+        subscription.remove();
+        WebRTCModule.peerConnectionStopQualityEstimation(
+            this._peerConnectionId);
+      }
+    };
+  }
+
   getLocalStreams() {
     return this._localStreams.slice();
   }
@@ -308,6 +691,14 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
   }
 
   close() {
+    if (this._statsSubscription) {
+      this._statsSubscription.remove();
+      this._statsSubscription = null;
+    }
+    if (this._qualitySubscription) {
+      this._qualitySubscription.remove();
+      this._qualitySubscription = null;
+    }
     WebRTCModule.peerConnectionClose(this._peerConnectionId);
   }
 
@@ -406,7 +797,8 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
         const sender = {
           track: null,
           replaceTrack: null,
-          getStats: this.getSenderStats.bind(this)
+          getStats: this.getSenderStats.bind(this),
+          getStatsReport: () => this.getStatsReport(sender.track, 'sender')
         }
         /*TODO:
          build sender object
@@ -504,8 +896,10 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
         // XXX RTP data channels are not defined by the WebRTC standard, have
         // been deprecated in Chromium, and Google have decided (in 2015) to no
         // longer support them (in the face of multiple reported issues of
-        // breakages).
-        if (typeof id !== 'number' || id === -1) {
+        // breakages). Where channels have handles, an id of -1 merely means
+        // that it is not known yet.
+        if (typeof id !== 'number'
+            || (id === -1 && typeof evDataChannel.handle !== 'number')) {
           return;
         }
         const channel
@@ -518,8 +912,22 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
         // allocator is the authority on ResourceInUse. Consequently, it is
         // (pretty) safe to update our RTCDataChannel.id allocator without
         // checking for ResourceInUse.
-        this._dataChannelIds.add(id);
+        if (id !== -1) {
+          this._dataChannelIds.add(id);
+        }
         this.dispatchEvent(new RTCDataChannelEvent('datachannel', {channel}));
+      }),
+      DeviceEventEmitter.addListener('dataChannelStateChanged', ev => {
+        if (ev.peerConnectionId !== this._peerConnectionId
+            || ev.state !== 'closed'
+            || typeof ev.handle !== 'number') {
+          return;
+        }
+        // The native side has forgotten the channel by now.
+        this._dataChannelIds.delete(ev.id);
+        if ((ev.handle & 1) === 0) {
+          this._releaseDataChannelHandle(ev.handle);
+        }
       })
     ];
   }
@@ -546,7 +954,7 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
   if (dataChannelIds.has(id)) {
     throw new ResourceInUse('DataChannel id already in use: ' + id);
   }
-  } else {
+  } else if (!DATA_CHANNEL_HANDLES) {
     // Allocate a new id.
     // TODO Remembering the last used/allocated id and then incrementing it to
     // generate the next id to use will surely be faster. However, I want to
@@ -560,14 +968,50 @@ export default class RTCPeerConnection extends EventTarget(PEER_CONNECTION_EVENT
     // TODO Throw an error if no unused id is available.
     dataChannelDict = Object.assign({id}, dataChannelDict);
   }
+  // Otherwise the id is left to webrtc::PeerConnection, which picks one
+  // matching the DTLS role once it is known, and the channel is referred to
+  // by its handle until then.
   // Skylink creates a test dataChannel to obtain data channel information which can be filled by just returning an instance of RTCDataChannel without calling native code
   if (label !== 'test'){
+    if (DATA_CHANNEL_HANDLES) {
+      dataChannelDict
+        = Object.assign({}, dataChannelDict, {
+          handle: this._allocateDataChannelHandle()
+        });
+    }
     WebRTCModule.createDataChannel(
         this._peerConnectionId,
         label,
         dataChannelDict);
-    dataChannelIds.add(id);
+    if (typeof id === 'number') {
+      dataChannelIds.add(id);
+    }
   }
-  return new RTCDataChannel(this._peerConnectionId, label, dataChannelDict);
+  return new RTCDataChannel(this._peerConnectionId, label, dataChannelDict || {});
+  }
+
+  _allocateDataChannelHandle(): number {
+    const generations = this._dataChannelGenerations;
+    let slot = this._freeDataChannelSlots.pop();
+    if (slot === undefined) {
+      slot = generations.length;
+      generations.push(0);
+    }
+    return (generations[slot] << DATA_CHANNEL_GENERATION_SHIFT)
+      | (slot << DATA_CHANNEL_SLOT_SHIFT);
+  }
+
+  _releaseDataChannelHandle(handle: number) {
+    const slot
+      = (handle & ((1 << DATA_CHANNEL_GENERATION_SHIFT) - 1))
+        >> DATA_CHANNEL_SLOT_SHIFT;
+    const generations = this._dataChannelGenerations;
+    if (((handle >> DATA_CHANNEL_GENERATION_SHIFT) & DATA_CHANNEL_GENERATION_MASK)
+        !== generations[slot]) {
+      // Released already.
+      return;
+    }
+    generations[slot] = (generations[slot] + 1) & DATA_CHANNEL_GENERATION_MASK;
+    this._freeDataChannelSlots.push(slot);
   }
 }
@@ -1,33 +1,147 @@
 package com.oney.WebRTCModule;
 
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
-import android.util.Base64;
+import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
 
 import org.webrtc.DataChannel;
 
 class DataChannelObserver implements DataChannel.Observer {
 
-    private final int mId;
+    /**
+     * The handle under which this channel is registered in
+     * {@link #registry}.
+     */
+    private final int mHandle;
+
+    /**
+     * {@link #mHandle} as the object id of coalescible state events.
+     */
+    private final String idString;
     private final DataChannel mDataChannel;
     private final int peerConnectionId;
+    private final DataChannelRegistry registry;
     private final WebRTCModule webRTCModule;
 
+    /**
+     * Turns the received messages into what JavaScript gets. Only used by
+     * {@link #onMessage}, which libwebrtc invokes on a single thread.
+     */
+    private final MessageCodec codec = new MessageCodec();
+
+    /**
+     * Whether binary messages are delivered as Blobs stored in the
+     * <tt>BlobModule</tt> rather than as Base64 strings.
+     */
+    private volatile boolean blobs;
+
+    /**
+     * Collects the received messages if aggregation has been configured for
+     * this channel.
+     */
+    @Nullable
+    private volatile MessageAggregator aggregator;
+
+    /**
+     * The default limit of {@link #bufferedAmount()} for the send queue,
+     * below the 16 MiB at which libwebrtc refuses to buffer more.
+     */
+    private static final long DEFAULT_MAX_BUFFERED_AMOUNT = 8 * 1024 * 1024;
+
+    /**
+     * The number of bytes accepted by {@link #send} so far. Events report it
+     * along with the buffered amount so that JavaScript can account for the
+     * sends which have not reached native yet.
+     */
+    private long sentBytes;
+
+    /**
+     * The buffered amount last seen, including the send queue.
+     */
+    private long lastBufferedAmount;
+
+    private long bufferedAmountLowThreshold;
+
+    /**
+     * The shortest interval, in milliseconds, between two
+     * <tt>dataChannelBufferedAmountChanged</tt> events. The buffered amount
+     * decreases with every SCTP message acknowledged, so during a bulk send
+     * the event is rate-limited; reaching the low threshold or zero is
+     * reported right away.
+     */
+    private static final long BUFFERED_AMOUNT_EVENT_INTERVAL_MS = 100;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable bufferedAmountChangedRunnable
+        = this::emitBufferedAmountChanged;
+    private long bufferedAmountEmittedAt;
+    private boolean bufferedAmountChangedScheduled;
+
+    /**
+     * Whether sends are held in {@link #sendQueue} instead of overflowing the
+     * buffer of the DataChannel.
+     */
+    private boolean sendQueueEnabled;
+    private long maxBufferedAmount = DEFAULT_MAX_BUFFERED_AMOUNT;
+    private final ArrayDeque<DataChannel.Buffer> sendQueue
+        = new ArrayDeque<>();
+    private long sendQueueBytes;
+    private boolean drainScheduled;
+
+    /**
+     * The framing of the messages of this channel, if enabled, and the large
+     * messages waiting to be sent in chunks. The latter are accounted for in
+     * {@link #sendQueueBytes}.
+     */
+    @Nullable
+    private volatile MessageFraming framing;
+    private final ArrayDeque<MessageFraming.Outgoing> chunkQueue
+        = new ArrayDeque<>();
+
+    /**
+     * The file being streamed over this channel, if any.
+     */
+    @Nullable
+    private volatile FileTransfer fileTransfer;
+
+    /**
+     * The file the received binary messages are written to, if any.
+     */
+    @Nullable
+    private volatile FileSink fileSink;
+
     DataChannelObserver(
             WebRTCModule webRTCModule,
             int peerConnectionId,
-            int id,
+            DataChannelRegistry registry,
+            int handle,
             DataChannel dataChannel) {
         this.webRTCModule = webRTCModule;
         this.peerConnectionId = peerConnectionId;
-        mId = id;
+        this.registry = registry;
+        mHandle = handle;
+        idString = String.valueOf(handle);
         mDataChannel = dataChannel;
     }
 
+    int getHandle() {
+        return mHandle;
+    }
+
+    void close() {
+        mDataChannel.close();
+        registry.remove(mHandle, this);
+    }
+
     @Nullable
     private String dataChannelStateString(DataChannel.State dataChannelState) {
         switch (dataChannelState) {
@@ -43,45 +157,516 @@ class DataChannelObserver implements DataChannel.Observer {
         return null;
     }
 
-    @Override
-    public void onBufferedAmountChange(long amount) {
+    /**
+     * Sets how binary messages are delivered to JavaScript:
+     * <tt>"arraybuffer"</tt> (Base64-encoded) or <tt>"blob"</tt>.
+     */
+    void setBinaryType(String binaryType) {
+        blobs = "blob".equals(binaryType);
+    }
+
+    /**
+     * Makes this channel deliver its messages in batches.
+     *
+     * @param config <tt>maxDelayMs</tt> and <tt>maxBytes</tt>
+     */
+    void setAggregation(ReadableMap config) {
+        aggregator
+            = new MessageAggregator(webRTCModule, peerConnectionId, mHandle, config);
+    }
+
+    @Nullable
+    WritableMap getAggregationStats(boolean reset) {
+        MessageAggregator aggregator = this.aggregator;
+        return aggregator == null ? null : aggregator.getStats(reset);
+    }
+
+    /**
+     * Enables or disables the native send queue.
+     *
+     * @param maxBufferedAmount the number of bytes the DataChannel may buffer
+     * before sends are queued or 0 for the default
+     */
+    synchronized void setSendQueue(boolean enabled, long maxBufferedAmount) {
+        sendQueueEnabled = enabled;
+        this.maxBufferedAmount
+            = maxBufferedAmount > 0
+                ? maxBufferedAmount
+                : DEFAULT_MAX_BUFFERED_AMOUNT;
+    }
+
+    /**
+     * Enables the framing of the messages of this channel, which splits
+     * large messages into chunks. The other end has to enable it as well.
+     *
+     * @param config <tt>chunkSize</tt>, <tt>maxReassemblyBytes</tt> and
+     * <tt>timeoutMs</tt>
+     */
+    void setFraming(ReadableMap config) {
+        MessageFraming previous = framing;
+        framing = new MessageFraming(config);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Enables the compression of the messages sent over this channel,
+     * enabling framing with its defaults if necessary. The other end has to
+     * enable framing.
+     *
+     * @param config <tt>threshold</tt> and <tt>level</tt>
+     */
+    void setCompression(ReadableMap config) {
+        MessageFraming framing = this.framing;
+        if (framing == null) {
+            this.framing = framing = new MessageFraming(Arguments.createMap());
+        }
+        framing.setCompression(config);
+    }
+
+    synchronized void setBufferedAmountLowThreshold(long threshold) {
+        bufferedAmountLowThreshold = threshold;
+    }
+
+    /**
+     * Returns the number of bytes buffered by the DataChannel and the send
+     * queue.
+     */
+    long bufferedAmount() {
+        long amount = mDataChannel.bufferedAmount();
+        synchronized (this) {
+            return amount + sendQueueBytes;
+        }
+    }
+
+    /**
+     * Sends the given bytes or, with the send queue enabled and the buffer
+     * of the DataChannel full, queues them until it drains. Runs on the lane
+     * of the PeerConnection, like {@link #drain()}, so sends are serialized
+     * without holding the lock of this instance while calling into the
+     * DataChannel (which blocks on the signaling thread).
+     *
+     * @return <tt>false</tt> if the DataChannel refused the bytes
+     */
+    boolean send(byte[] bytes, boolean binary) {
+        MessageFraming framing = this.framing;
+        DataChannel.Buffer buffer;
+        if (framing == null) {
+            buffer = new DataChannel.Buffer(ByteBuffer.wrap(bytes), binary);
+        } else {
+            MessageFraming.Outgoing outgoing = framing.encode(bytes, binary);
+            if (outgoing.isChunked()) {
+                synchronized (this) {
+                    sentBytes += bytes.length;
+                    chunkQueue.add(outgoing);
+                    sendQueueBytes += outgoing.remaining();
+                    lastBufferedAmount += outgoing.remaining();
+                }
+                pumpChunks();
+                return true;
+            }
+            buffer = new DataChannel.Buffer(outgoing.nextChunk(), true);
+        }
+        int size = buffer.data.remaining();
+        long amount = mDataChannel.bufferedAmount();
+        boolean queue;
+        synchronized (this) {
+            sentBytes += bytes.length;
+            queue
+                = sendQueueEnabled
+                    && (!sendQueue.isEmpty()
+                        || amount + size > maxBufferedAmount);
+            if (queue) {
+                sendQueue.add(buffer);
+                sendQueueBytes += size;
+            }
+            lastBufferedAmount
+                = amount + sendQueueBytes + (queue ? 0 : size);
+        }
+        if (!queue && !mDataChannel.send(buffer)) {
+            Log.d(WebRTCModule.TAG, "dataChannelSend() send failed");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a chunk of a {@link FileTransfer}. Unlike {@link #send}, it is
+     * not accounted for in the <tt>sentBytes</tt> reported to JavaScript,
+     * which did not send it. Runs on the lane of the PeerConnection.
+     */
+    boolean sendChunk(ByteBuffer data) {
+        MessageFraming framing = this.framing;
+        if (framing != null) {
+            data = framing.frameWhole(data);
+        }
+        int size = data.remaining();
+        long amount = mDataChannel.bufferedAmount();
+        synchronized (this) {
+            lastBufferedAmount = amount + sendQueueBytes + size;
+        }
+        return mDataChannel.send(new DataChannel.Buffer(data, true));
+    }
+
+    /**
+     * Sends chunks of the large messages waiting in {@link #chunkQueue} while
+     * the DataChannel buffers less than two chunks, so that the messages sent
+     * in the meantime do not wait for all of them. Runs on the lane of the
+     * PeerConnection.
+     */
+    private void pumpChunks() {
+        MessageFraming framing = this.framing;
+        if (framing == null) {
+            return;
+        }
+        while (true) {
+            MessageFraming.Outgoing outgoing;
+            synchronized (this) {
+                outgoing = chunkQueue.peek();
+            }
+            if (outgoing == null
+                    || mDataChannel.bufferedAmount() >= 2L * framing.chunkSize) {
+                return;
+            }
+            int remaining = outgoing.remaining();
+            ByteBuffer frame = outgoing.nextChunk();
+            synchronized (this) {
+                sendQueueBytes -= remaining - outgoing.remaining();
+                if (outgoing.isDone()) {
+                    chunkQueue.poll();
+                }
+            }
+            if (!mDataChannel.send(new DataChannel.Buffer(frame, true))) {
+                Log.d(WebRTCModule.TAG, "dataChannelSend() send failed");
+            }
+        }
+    }
+
+    /**
+     * Returns the largest message {@link #sendChunk} sends as is.
+     */
+    int maxChunkSize() {
+        MessageFraming framing = this.framing;
+        return framing == null
+            ? Integer.MAX_VALUE
+            : framing.chunkSize - MessageFraming.WHOLE_HEADER_SIZE;
+    }
+
+    boolean isClosed() {
+        return mDataChannel.state() == DataChannel.State.CLOSED;
+    }
+
+    /**
+     * Starts streaming a file over this channel unless another one is.
+     *
+     * @return <tt>false</tt> if another file is being streamed
+     */
+    boolean startFileTransfer(FileTransfer transfer) {
+        if (fileTransfer != null) {
+            return false;
+        }
+        fileTransfer = transfer;
+        transfer.start();
+        return true;
+    }
+
+    boolean canAttachFileSink() {
+        FileSink sink = fileSink;
+        return sink == null || sink.isEnded();
+    }
+
+    /**
+     * Makes the received binary messages go to the given sink rather than to
+     * JavaScript.
+     */
+    void attachFileSink(FileSink sink) {
+        fileSink = sink;
+    }
+
+    /**
+     * Detaches the file sink, if any, and finishes its file. Runs on the lane
+     * of the PeerConnection, after the writes of the messages received so
+     * far.
+     */
+    @Nullable
+    WritableMap detachFileSink(String state) {
+        FileSink sink = fileSink;
+        if (sink == null) {
+            return null;
+        }
+        fileSink = null;
+        return sink.end(state, null);
+    }
+
+    @Nullable
+    FileTransfer getFileTransfer() {
+        return fileTransfer;
+    }
+
+    void onFileTransferEnded(FileTransfer transfer) {
+        if (fileTransfer == transfer) {
+            fileTransfer = null;
+        }
+    }
+
+    /**
+     * Moves the queued sends into the DataChannel as far as its buffer
+     * allows, then resumes the file transfer, if any. Runs on the lane of the
+     * PeerConnection.
+     */
+    private void drain() {
+        boolean closed = mDataChannel.state() == DataChannel.State.CLOSED;
+        while (true) {
+            DataChannel.Buffer buffer;
+            synchronized (this) {
+                drainScheduled = false;
+                if (closed) {
+                    sendQueue.clear();
+                    chunkQueue.clear();
+                    sendQueueBytes = 0;
+                    break;
+                }
+                buffer = sendQueue.peek();
+                if (buffer == null) {
+                    break;
+                }
+            }
+            int size = buffer.data.remaining();
+            long amount = mDataChannel.bufferedAmount();
+            synchronized (this) {
+                // A message larger than the limit goes out once the buffer
+                // is empty.
+                if (sendQueueEnabled
+                        && amount + size > maxBufferedAmount
+                        && amount != 0) {
+                    return;
+                }
+                sendQueue.poll();
+                sendQueueBytes -= size;
+            }
+            if (!mDataChannel.send(buffer)) {
+                Log.d(WebRTCModule.TAG, "dataChannelSend() send failed");
+            }
+        }
+
+        pumpChunks();
+
+        FileTransfer transfer = fileTransfer;
+        if (transfer != null) {
+            transfer.pump();
+        }
+    }
+
+    private synchronized void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            ThreadUtils.runOnExecutor(
+                peerConnectionId,
+                ThreadUtils.PRIORITY_NORMAL,
+                "dataChannelDrain",
+                this::drain);
+        }
     }
 
     @Override
-    public void onMessage(DataChannel.Buffer buffer) {
+    public void onBufferedAmountChange(long previousAmount) {
+        // Invoked on the signaling thread, where the DataChannel is called
+        // directly.
+        long amount = mDataChannel.bufferedAmount();
+        WritableMap changed = null;
+        WritableMap low = null;
+        boolean cancelScheduled = false;
+        synchronized (this) {
+            if ((!sendQueue.isEmpty()
+                        || !chunkQueue.isEmpty()
+                        || fileTransfer != null)
+                    && amount < previousAmount) {
+                scheduleDrain();
+            }
+
+            amount += sendQueueBytes;
+            if (amount < lastBufferedAmount) {
+                long now = SystemClock.uptimeMillis();
+                if (lastBufferedAmount > bufferedAmountLowThreshold
+                        && amount <= bufferedAmountLowThreshold) {
+                    // Carries the buffered amount too.
+                    low = bufferedAmountParams(amount);
+                } else if (amount == 0
+                        || now - bufferedAmountEmittedAt
+                            >= BUFFERED_AMOUNT_EVENT_INTERVAL_MS) {
+                    changed = bufferedAmountParams(amount);
+                } else if (!bufferedAmountChangedScheduled) {
+                    bufferedAmountChangedScheduled = true;
+                    handler.postDelayed(
+                        bufferedAmountChangedRunnable,
+                        BUFFERED_AMOUNT_EVENT_INTERVAL_MS
+                            - (now - bufferedAmountEmittedAt));
+                }
+                if (low != null || changed != null) {
+                    bufferedAmountEmittedAt = now;
+                    cancelScheduled = bufferedAmountChangedScheduled;
+                    bufferedAmountChangedScheduled = false;
+                }
+            }
+            lastBufferedAmount = amount;
+        }
+        if (cancelScheduled) {
+            handler.removeCallbacks(bufferedAmountChangedRunnable);
+        }
+        if (changed != null) {
+            webRTCModule.sendStateEvent(
+                "dataChannelBufferedAmountChanged",
+                changed,
+                peerConnectionId,
+                idString);
+        }
+        if (low != null) {
+            webRTCModule.sendEvent("dataChannelBufferedAmountLow", low);
+        }
+    }
+
+    /**
+     * Emits the buffered amount held back by the rate limit of
+     * {@link #onBufferedAmountChange}.
+     */
+    private void emitBufferedAmountChanged() {
+        WritableMap changed;
+        synchronized (this) {
+            if (!bufferedAmountChangedScheduled) {
+                return;
+            }
+            bufferedAmountChangedScheduled = false;
+            bufferedAmountEmittedAt = SystemClock.uptimeMillis();
+            changed = bufferedAmountParams(lastBufferedAmount);
+        }
+        webRTCModule.sendStateEvent(
+            "dataChannelBufferedAmountChanged",
+            changed,
+            peerConnectionId,
+            idString);
+    }
+
+    private WritableMap bufferedAmountParams(long amount) {
         WritableMap params = Arguments.createMap();
-        params.putInt("id", mId);
+        params.putInt("handle", mHandle);
         params.putInt("peerConnectionId", peerConnectionId);
+        params.putDouble("bufferedAmount", amount);
+        params.putDouble("sentBytes", sentBytes);
+        return params;
+    }
 
-        byte[] bytes;
-        if (buffer.data.hasArray()) {
-            bytes = buffer.data.array();
+    @Override
+    public void onMessage(DataChannel.Buffer buffer) {
+        MessageFraming framing = this.framing;
+        if (framing == null) {
+            onMessage(buffer.data, buffer.binary);
         } else {
-            bytes = new byte[buffer.data.remaining()];
-            buffer.data.get(bytes);
+            MessageFraming.Message message = framing.onFrame(buffer.data);
+            if (message != null) {
+                onMessage(message.data, message.binary);
+            }
         }
+    }
 
+    private void onMessage(ByteBuffer buffer, boolean binary) {
+        int size = buffer.remaining();
         String type;
-        String data;
-        if (buffer.binary) {
+        Object data;
+        FileSink sink = fileSink;
+        if (binary && sink != null && !sink.isEnded()) {
+            byte[] bytes = copyBytes(buffer);
+            ThreadUtils.runOnExecutor(
+                peerConnectionId,
+                ThreadUtils.PRIORITY_NORMAL,
+                "dataChannelFileSinkWrite",
+                () -> sink.write(bytes));
+            return;
+        } else if (binary && blobs) {
+            // The bytes are handed over to the BlobModule as they are and
+            // JavaScript gets a handle to them.
+            byte[] bytes = copyBytes(buffer);
+            WritableMap blob = Arguments.createMap();
+            blob.putString("blobId", webRTCModule.getBlobModule().store(bytes));
+            blob.putInt("offset", 0);
+            blob.putInt("size", size);
+            type = "blob";
+            data = blob;
+        } else if (binary) {
             type = "binary";
-            data = Base64.encodeToString(bytes, Base64.NO_WRAP);
+            data = codec.encodeBase64(buffer);
         } else {
             type = "text";
-            data = new String(bytes, Charset.forName("UTF-8"));
+            data = codec.decodeText(buffer);
+        }
+
+        MessageAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            aggregator.add(type, data, size);
+            return;
         }
+
+        WritableMap params = Arguments.createMap();
+        params.putInt("handle", mHandle);
+        params.putInt("peerConnectionId", peerConnectionId);
         params.putString("type", type);
-        params.putString("data", data);
+        if (data instanceof WritableMap) {
+            params.putMap("data", (WritableMap) data);
+        } else {
+            params.putString("data", (String) data);
+        }
 
         webRTCModule.sendEvent("dataChannelReceiveMessage", params);
     }
 
+    /**
+     * Returns a copy of the remaining bytes of a buffer which the caller may
+     * keep.
+     */
+    private static byte[] copyBytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
     @Override
     public void onStateChange() {
+        MessageAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            // The messages are delivered before the channel is seen closed.
+            aggregator.flush();
+        }
+        if (fileTransfer != null && isClosed()) {
+            // Lets the transfer fail.
+            scheduleDrain();
+        }
+        if (fileSink != null && isClosed()) {
+            ThreadUtils.runOnExecutor(
+                peerConnectionId,
+                ThreadUtils.PRIORITY_NORMAL,
+                "dataChannelDetachFileSink",
+                () -> detachFileSink("closed"));
+        }
+
+        DataChannel.State state = mDataChannel.state();
+        if (state == DataChannel.State.CLOSED) {
+            MessageFraming framing = this.framing;
+            if (framing != null) {
+                // Frees the messages which will never be completed.
+                framing.close();
+            }
+            // JavaScript reuses the handle only after it has seen this event.
+            registry.remove(mHandle, this);
+        }
+
         WritableMap params = Arguments.createMap();
-        params.putInt("id", mId);
+        params.putInt("handle", mHandle);
+        // The id of a channel without a negotiated one is only known once
+        // it opens.
+        params.putInt("id", mDataChannel.id());
         params.putInt("peerConnectionId", peerConnectionId);
-        params.putString("state", dataChannelStateString(mDataChannel.state()));
-        webRTCModule.sendEvent("dataChannelStateChanged", params);
+        params.putString("state", dataChannelStateString(state));
+        webRTCModule.sendStateEvent(
+            "dataChannelStateChanged", params, peerConnectionId, idString);
     }
 }
@@ -0,0 +1,145 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The data channels of a PeerConnection indexed directly by their handle.
+ * A handle is assigned when the channel is created and, unlike the SCTP
+ * stream id, is known from the start even for channels whose id is only
+ * negotiated later.
+ *
+ * <p>A handle is made of a slot, which is the index of the channel in this
+ * registry, a bit telling whether the slot is allocated by JavaScript (for
+ * the channels created locally) or by {@link #allocateRemote()} (for the
+ * channels announced by the remote peer) and a generation, which changes
+ * each time a slot is reused so that the events of a closed channel can
+ * never be mistaken for those of its successor. The layout is mirrored by
+ * <tt>RTCPeerConnection.js</tt>:
+ *
+ * <pre>
+ * handle = generation &lt;&lt; 17 | slot &lt;&lt; 1 | remote
+ * </pre>
+ *
+ * <p>Channels are registered on the executor and on the signaling thread,
+ * hence the methods are synchronized.
+ */
+final class DataChannelRegistry {
+    private static final int REMOTE = 1;
+    private static final int INDEX_MASK = (1 << 17) - 1;
+    private static final int GENERATION_SHIFT = 17;
+    private static final int GENERATION_MASK = (1 << 14) - 1;
+
+    /**
+     * The number of slots of each kind. SCTP does not allow more streams.
+     */
+    private static final int MAX_SLOTS = 1 << 16;
+
+    private DataChannelObserver[] observers = new DataChannelObserver[16];
+    private int size;
+
+    /**
+     * The next generation of each remote slot, the free remote slots and the
+     * number of remote slots ever used.
+     */
+    private int[] remoteGenerations = new int[8];
+    private int[] freeRemoteSlots = new int[8];
+    private int freeRemoteCount;
+    private int remoteSlotCount;
+
+    /**
+     * Allocates the handle of a channel announced by the remote peer.
+     *
+     * @return the handle or -1 if all the slots are in use
+     */
+    synchronized int allocateRemote() {
+        int slot;
+        if (freeRemoteCount != 0) {
+            slot = freeRemoteSlots[--freeRemoteCount];
+        } else if (remoteSlotCount < MAX_SLOTS) {
+            slot = remoteSlotCount++;
+            if (slot == remoteGenerations.length) {
+                remoteGenerations
+                    = Arrays.copyOf(remoteGenerations, slot * 2);
+            }
+        } else {
+            return -1;
+        }
+        return remoteGenerations[slot] << GENERATION_SHIFT
+            | slot << 1
+            | REMOTE;
+    }
+
+    synchronized void put(int handle, DataChannelObserver observer) {
+        int index = handle & INDEX_MASK;
+        if (index >= observers.length) {
+            observers
+                = Arrays.copyOf(
+                    observers,
+                    Math.max(observers.length * 2, index + 1));
+        }
+        if (observers[index] == null) {
+            size++;
+        }
+        observers[index] = observer;
+    }
+
+    @Nullable
+    synchronized DataChannelObserver get(int handle) {
+        int index = handle & INDEX_MASK;
+        if (handle < 0 || index >= observers.length) {
+            return null;
+        }
+        DataChannelObserver observer = observers[index];
+        return observer != null && observer.getHandle() == handle
+            ? observer
+            : null;
+    }
+
+    /**
+     * Removes a channel if it is still registered under the given handle.
+     * The slot of a remote channel becomes available to the next one.
+     */
+    synchronized void remove(int handle, DataChannelObserver observer) {
+        int index = handle & INDEX_MASK;
+        if (handle < 0
+                || index >= observers.length
+                || observers[index] != observer) {
+            return;
+        }
+        observers[index] = null;
+        size--;
+        if ((handle & REMOTE) != 0) {
+            int slot = index >> 1;
+            remoteGenerations[slot]
+                = (remoteGenerations[slot] + 1) & GENERATION_MASK;
+            if (freeRemoteCount == freeRemoteSlots.length) {
+                freeRemoteSlots
+                    = Arrays.copyOf(freeRemoteSlots, freeRemoteCount * 2);
+            }
+            freeRemoteSlots[freeRemoteCount++] = slot;
+        }
+    }
+
+    /**
+     * Returns the registered channels. The list is a copy, so the caller
+     * may call into the channels without holding the lock of this registry.
+     */
+    synchronized List<DataChannelObserver> values() {
+        List<DataChannelObserver> values = new ArrayList<>(size);
+        for (DataChannelObserver observer : observers) {
+            if (observer != null) {
+                values.add(observer);
+            }
+        }
+        return values;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(observers, null);
+        size = 0;
+    }
+}
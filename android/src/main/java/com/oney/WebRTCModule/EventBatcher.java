@@ -0,0 +1,503 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.view.Choreographer;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Buffers the events sent by {@link WebRTCModule#sendEvent} and delivers them
+ * to JavaScript as a single array event, either once per frame or when a size
+ * or time threshold is hit. Disabled by default, in which case every event is
+ * emitted on its own as before.
+ * <p>
+ * State events ("last value wins") are coalesced while pending: a newer event
+ * with the same name, PeerConnection id and object id replaces the older one
+ * (and takes its place at the end of the batch so that it stays ordered after
+ * the events sent in between). Ordered events such as ICE candidates and
+ * messages are never coalesced.
+ * <p>
+ * JavaScript acknowledges every batch it has dispatched. No more than
+ * <tt>maxInFlightBatches</tt> batches are left unacknowledged, so while the JS
+ * thread is stalled events accumulate here rather than in the bridge, where
+ * the backlog is bounded by <tt>maxQueuedEvents</tt>. Past the bound, mute
+ * changes drop the oldest pending one; all other events (including the stats
+ * deltas, each of which builds on the previous one) are parked, i.e. kept
+ * past the bound, and the thread delivering data channel messages may
+ * optionally be paused until there is room again, which stops the reading of
+ * SCTP data. That thread also delivers the ICE, state and stats callbacks of
+ * all PeerConnections, so the pauses of a stall add up to no more than
+ * <tt>maxPauseMs</tt>.
+ */
+class EventBatcher {
+    /**
+     * The name of the event which carries a batch. Its payload is an array of
+     * <tt>{event, data}</tt> maps in the order in which they were sent.
+     */
+    static final String BATCH_EVENT = "webrtcEventBatch";
+
+    /**
+     * The number of batch size histogram buckets. Bucket <tt>i</tt> counts
+     * batches of [2^i, 2^(i+1)) events.
+     */
+    private static final int BUCKET_COUNT = 12;
+
+    /**
+     * The event emitted (outside of batches) when the backlog overflows. It
+     * is emitted once per overflow, i.e. again only after the backlog has
+     * been delivered.
+     */
+    static final String OVERFLOW_EVENT = "webrtcEventQueueOverflow";
+
+    /**
+     * The events which drop the oldest pending event of their class when the
+     * backlog is full.
+     */
+    private static final Set<String> DROPPABLE_EVENTS
+        = new HashSet<>(Arrays.asList(
+            "mediaStreamTrackMuteChanged"));
+
+    /**
+     * The events whose delivering thread may be paused when the backlog is
+     * full: the data channel messages, one by one or aggregated.
+     */
+    private static final Set<String> PAUSABLE_EVENTS
+        = new HashSet<>(Arrays.asList(
+            "dataChannelReceiveMessage",
+            MessageAggregator.EVENT));
+
+    private final WebRTCModule webRTCModule;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private boolean enabled;
+    private boolean flushOnFrame = true;
+    private int maxBatchSize = 64;
+    private long maxDelayMs = 16;
+    private int maxInFlightBatches = 2;
+    private int maxQueuedEvents = 1024;
+    private boolean pauseReadsOnOverflow;
+    private long maxPauseMs = 1000;
+
+    /**
+     * The pending events. A <tt>null</tt> name marks an event which has been
+     * superseded by a newer one or dropped.
+     */
+    private String[] pendingNames = new String[16];
+    private WritableMap[] pendingParams = new WritableMap[16];
+    private int[] pendingPeerConnectionIds = new int[16];
+    private String[] pendingObjectIds = new String[16];
+    private boolean[] pendingCoalescible = new boolean[16];
+    private int pendingCount;
+    private int removedCount;
+
+    /**
+     * The number of batches emitted but not yet acknowledged by JavaScript.
+     */
+    private int inFlightBatches;
+
+    /**
+     * Whether the backlog has overflowed and not been delivered yet.
+     */
+    private boolean overflowing;
+
+    /**
+     * The time the delivering thread has been paused for since the backlog
+     * overflowed, which is bounded by {@link #maxPauseMs}.
+     */
+    private long overflowPausedNs;
+
+    /**
+     * Whether a flush of the pending events has been scheduled.
+     */
+    private boolean flushScheduled;
+
+    private long batchCount;
+    private long eventCount;
+    private long coalescedCount;
+    private int largestBatch;
+    private int highWaterMark;
+    private long droppedCount;
+    private long parkedCount;
+    private long overflowCount;
+    private long pausedNs;
+    private final long[] batchSizeHistogram = new long[BUCKET_COUNT];
+
+    private final Runnable flushRunnable = this::flush;
+
+    private final Choreographer.FrameCallback frameCallback
+        = frameTimeNanos -> flush();
+
+    private final Runnable postFrameCallback
+        = () -> Choreographer.getInstance().postFrameCallback(frameCallback);
+
+    EventBatcher(WebRTCModule webRTCModule) {
+        this.webRTCModule = webRTCModule;
+    }
+
+    /**
+     * Applies batching options: <tt>enabled</tt>, <tt>flushOnFrame</tt>,
+     * <tt>maxBatchSize</tt>, <tt>maxDelayMs</tt>,
+     * <tt>maxInFlightBatches</tt> (0 disables the acknowledgements),
+     * <tt>maxQueuedEvents</tt>, <tt>pauseReadsOnOverflow</tt> and
+     * <tt>maxPauseMs</tt> (the total pause per overflow). Disabling batching delivers the pending events
+     * right away. Since JavaScript configures batching when it (re)loads, the
+     * batches still in flight are considered acknowledged.
+     */
+    void configure(ReadableMap options) {
+        synchronized (this) {
+            if (options.hasKey("flushOnFrame")) {
+                flushOnFrame = options.getBoolean("flushOnFrame");
+            }
+            if (options.hasKey("maxBatchSize")) {
+                maxBatchSize = Math.max(1, options.getInt("maxBatchSize"));
+            }
+            if (options.hasKey("maxDelayMs")) {
+                maxDelayMs = Math.max(0, options.getInt("maxDelayMs"));
+            }
+            if (options.hasKey("maxInFlightBatches")) {
+                maxInFlightBatches
+                    = Math.max(0, options.getInt("maxInFlightBatches"));
+            }
+            if (options.hasKey("maxQueuedEvents")) {
+                maxQueuedEvents
+                    = Math.max(1, options.getInt("maxQueuedEvents"));
+            }
+            if (options.hasKey("pauseReadsOnOverflow")) {
+                pauseReadsOnOverflow
+                    = options.getBoolean("pauseReadsOnOverflow");
+            }
+            if (options.hasKey("maxPauseMs")) {
+                maxPauseMs = Math.max(0, options.getInt("maxPauseMs"));
+            }
+            if (options.hasKey("enabled")) {
+                enabled = options.getBoolean("enabled");
+            }
+            inFlightBatches = 0;
+            notifyAll();
+        }
+        flush();
+    }
+
+    /**
+     * Buffers an event if batching is enabled.
+     *
+     * @return <tt>true</tt> if the event was buffered; <tt>false</tt> if it is
+     * to be emitted right away
+     */
+    boolean offer(String eventName, @Nullable WritableMap params) {
+        return offer(eventName, params, false, -1, null);
+    }
+
+    /**
+     * Buffers a state event if batching is enabled, dropping a pending event
+     * it supersedes.
+     *
+     * @param peerConnectionId the id of the PeerConnection the event is about
+     * @param objectId the id of the object (data channel, track) within the
+     * PeerConnection the event is about or <tt>null</tt>
+     * @return <tt>true</tt> if the event was buffered; <tt>false</tt> if it is
+     * to be emitted right away
+     */
+    boolean offerState(
+            String eventName,
+            @Nullable WritableMap params,
+            int peerConnectionId,
+            @Nullable String objectId) {
+        return offer(eventName, params, true, peerConnectionId, objectId);
+    }
+
+    private boolean offer(
+            String eventName,
+            @Nullable WritableMap params,
+            boolean coalescible,
+            int peerConnectionId,
+            @Nullable String objectId) {
+        boolean flushNow;
+        synchronized (this) {
+            if (!enabled) {
+                return false;
+            }
+            if (coalescible) {
+                supersede(eventName, peerConnectionId, objectId);
+            }
+            if (pendingCount - removedCount >= maxQueuedEvents
+                    && !makeRoom(eventName)) {
+                return true;
+            }
+            if (pendingCount == pendingNames.length) {
+                grow();
+            }
+            pendingNames[pendingCount] = eventName;
+            pendingParams[pendingCount] = params;
+            pendingPeerConnectionIds[pendingCount] = peerConnectionId;
+            pendingObjectIds[pendingCount] = objectId;
+            pendingCoalescible[pendingCount] = coalescible;
+            pendingCount++;
+
+            int queued = pendingCount - removedCount;
+            highWaterMark = Math.max(highWaterMark, queued);
+            flushNow = queued >= maxBatchSize;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                if (flushOnFrame) {
+                    mainHandler.post(postFrameCallback);
+                } else {
+                    mainHandler.postDelayed(flushRunnable, maxDelayMs);
+                }
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Marks the pending state event with the given key, if any, superseded.
+     */
+    private void supersede(
+            String eventName,
+            int peerConnectionId,
+            @Nullable String objectId) {
+        for (int i = pendingCount - 1; i >= 0; i--) {
+            if (pendingCoalescible[i]
+                    && pendingPeerConnectionIds[i] == peerConnectionId
+                    && eventName.equals(pendingNames[i])
+                    && (objectId == null
+                        ? pendingObjectIds[i] == null
+                        : objectId.equals(pendingObjectIds[i]))) {
+                pendingNames[i] = null;
+                pendingParams[i] = null;
+                removedCount++;
+                coalescedCount++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the overflow policy of an event about to be queued while the
+     * backlog is full.
+     *
+     * @return <tt>true</tt> if the event is to be queued; <tt>false</tt> if
+     * it is to be dropped
+     */
+    private boolean makeRoom(String eventName) {
+        if (!overflowing) {
+            overflowing = true;
+            overflowPausedNs = 0;
+            overflowCount++;
+            WritableMap params = Arguments.createMap();
+            params.putInt("queuedEvents", pendingCount - removedCount);
+            params.putInt("maxQueuedEvents", maxQueuedEvents);
+            params.putInt("inFlightBatches", inFlightBatches);
+            // It does not wait for the stalled backlog.
+            webRTCModule.emitEvent(OVERFLOW_EVENT, params);
+        }
+
+        if (DROPPABLE_EVENTS.contains(eventName)) {
+            droppedCount++;
+            for (int i = 0; i < pendingCount; i++) {
+                if (eventName.equals(pendingNames[i])) {
+                    pendingNames[i] = null;
+                    pendingParams[i] = null;
+                    removedCount++;
+                    return true;
+                }
+            }
+            // The new event is the oldest of its class.
+            return false;
+        }
+
+        parkedCount++;
+        long pauseNs = maxPauseMs * 1000000L - overflowPausedNs;
+        if (pauseReadsOnOverflow
+                && pauseNs > 0
+                && PAUSABLE_EVENTS.contains(eventName)
+                && Looper.myLooper() != Looper.getMainLooper()) {
+            // Blocking the thread which delivers the messages stops the
+            // reading of SCTP data until JavaScript catches up. Since the
+            // same thread serves all PeerConnections, the pauses of an
+            // overflow share a single budget rather than one per message.
+            long start = System.nanoTime();
+            long deadline = start + pauseNs;
+            long remaining;
+            while (enabled
+                    && pendingCount - removedCount >= maxQueuedEvents
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    wait(remaining / 1000000L + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long pausedNs = System.nanoTime() - start;
+            this.pausedNs += pausedNs;
+            overflowPausedNs += pausedNs;
+        }
+        return true;
+    }
+
+    private void grow() {
+        if (removedCount * 2 >= pendingCount) {
+            compact();
+            return;
+        }
+        int length = pendingNames.length * 2;
+        pendingNames = Arrays.copyOf(pendingNames, length);
+        pendingParams = Arrays.copyOf(pendingParams, length);
+        pendingPeerConnectionIds
+            = Arrays.copyOf(pendingPeerConnectionIds, length);
+        pendingObjectIds = Arrays.copyOf(pendingObjectIds, length);
+        pendingCoalescible = Arrays.copyOf(pendingCoalescible, length);
+    }
+
+    /**
+     * Moves the pending events over the removed ones.
+     */
+    private void compact() {
+        int j = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingNames[i] != null) {
+                pendingNames[j] = pendingNames[i];
+                pendingParams[j] = pendingParams[i];
+                pendingPeerConnectionIds[j] = pendingPeerConnectionIds[i];
+                pendingObjectIds[j] = pendingObjectIds[i];
+                pendingCoalescible[j] = pendingCoalescible[i];
+                j++;
+            }
+        }
+        for (int i = j; i < pendingCount; i++) {
+            pendingNames[i] = null;
+            pendingParams[i] = null;
+            pendingObjectIds[i] = null;
+        }
+        pendingCount = j;
+        removedCount = 0;
+    }
+
+    /**
+     * Invoked when JavaScript has dispatched a batch. Delivers the events
+     * which have been held back in the meantime.
+     */
+    void onBatchDelivered() {
+        synchronized (this) {
+            if (inFlightBatches > 0) {
+                inFlightBatches--;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Emits the pending events as one batch unless too many batches are in
+     * flight already.
+     */
+    void flush() {
+        WritableArray batch;
+        synchronized (this) {
+            flushScheduled = false;
+            int size = pendingCount - removedCount;
+            if (size == 0) {
+                return;
+            }
+            if (enabled
+                    && maxInFlightBatches != 0
+                    && inFlightBatches >= maxInFlightBatches) {
+                // Delivered by onBatchDelivered.
+                return;
+            }
+            batch = Arguments.createArray();
+            for (int i = 0; i < pendingCount; i++) {
+                String name = pendingNames[i];
+                if (name == null) {
+                    continue;
+                }
+                WritableMap event = Arguments.createMap();
+                event.putString("event", name);
+                WritableMap params = pendingParams[i];
+                if (params == null) {
+                    event.putNull("data");
+                } else {
+                    event.putMap("data", params);
+                }
+                batch.pushMap(event);
+                pendingNames[i] = null;
+                pendingParams[i] = null;
+                pendingObjectIds[i] = null;
+            }
+            pendingCount = 0;
+            removedCount = 0;
+            if (enabled && maxInFlightBatches != 0) {
+                inFlightBatches++;
+            }
+            overflowing = false;
+            notifyAll();
+
+            batchCount++;
+            eventCount += size;
+            largestBatch = Math.max(largestBatch, size);
+            int bucket = 31 - Integer.numberOfLeadingZeros(size);
+            batchSizeHistogram[Math.min(bucket, BUCKET_COUNT - 1)]++;
+
+            // Emitting under the lock keeps batches in order when several
+            // threads flush concurrently.
+            webRTCModule.emitEvent(BATCH_EVENT, batch);
+        }
+    }
+
+    /**
+     * Returns the batch counters.
+     *
+     * @param reset whether to reset the counters after taking the snapshot
+     */
+    synchronized WritableMap getStats(boolean reset) {
+        WritableMap stats = Arguments.createMap();
+        stats.putBoolean("enabled", enabled);
+        stats.putDouble("batches", batchCount);
+        stats.putDouble("events", eventCount);
+        stats.putDouble(
+            "averageBatchSize",
+            batchCount == 0 ? 0 : (double) eventCount / batchCount);
+        stats.putInt("largestBatch", largestBatch);
+        stats.putDouble("coalescedEvents", coalescedCount);
+        stats.putInt("queuedEvents", pendingCount - removedCount);
+        stats.putInt("highWaterMark", highWaterMark);
+        stats.putInt("inFlightBatches", inFlightBatches);
+        stats.putDouble("droppedEvents", droppedCount);
+        stats.putDouble("parkedEvents", parkedCount);
+        stats.putDouble("overflows", overflowCount);
+        stats.putDouble("pausedMs", pausedNs / 1e6);
+        WritableArray histogram = Arguments.createArray();
+        for (long count : batchSizeHistogram) {
+            histogram.pushDouble(count);
+        }
+        stats.putArray("batchSizeHistogram", histogram);
+
+        if (reset) {
+            batchCount = 0;
+            eventCount = 0;
+            coalescedCount = 0;
+            largestBatch = 0;
+            highWaterMark = pendingCount - removedCount;
+            droppedCount = 0;
+            parkedCount = 0;
+            overflowCount = 0;
+            pausedNs = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                batchSizeHistogram[i] = 0;
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,202 @@
+package com.oney.WebRTCModule;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queue wait and run time statistics of the tasks executed by
+ * {@link ThreadUtils}, kept per bridge method. The counters of a method are
+ * allocated once when the method is registered; recording a task only
+ * updates atomics.
+ */
+final class ExecutorStats {
+    /**
+     * The number of histogram buckets. Bucket <tt>i</tt> counts durations in
+     * the range [2^(i-1), 2^i) microseconds (bucket 0 counts durations below
+     * 1us) and the last bucket counts everything above.
+     */
+    static final int BUCKET_COUNT = 24;
+
+    private static final Map<String, Method> methods
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The number of tasks which are queued on (but not yet run by) any lane.
+     */
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+
+    private static final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * The counters of a single bridge method.
+     */
+    static final class Method {
+        final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong waitTotalNs = new AtomicLong();
+        private final AtomicLong waitMaxNs = new AtomicLong();
+        private final AtomicLong runTotalNs = new AtomicLong();
+        private final AtomicLong runMaxNs = new AtomicLong();
+        private final AtomicInteger maxLaneDepth = new AtomicInteger();
+        private final AtomicLongArray waitHistogram
+            = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLongArray runHistogram
+            = new AtomicLongArray(BUCKET_COUNT);
+
+        private Method(String name) {
+            this.name = name;
+        }
+
+        private void record(long waitNs, long runNs) {
+            count.incrementAndGet();
+            waitTotalNs.addAndGet(waitNs);
+            runTotalNs.addAndGet(runNs);
+            updateMax(waitMaxNs, waitNs);
+            updateMax(runMaxNs, runNs);
+            waitHistogram.incrementAndGet(bucket(waitNs));
+            runHistogram.incrementAndGet(bucket(runNs));
+        }
+
+        private void reset() {
+            count.set(0);
+            waitTotalNs.set(0);
+            waitMaxNs.set(0);
+            runTotalNs.set(0);
+            runMaxNs.set(0);
+            maxLaneDepth.set(0);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                waitHistogram.set(i, 0);
+                runHistogram.set(i, 0);
+            }
+        }
+
+        private WritableMap toWritableMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", count.get());
+            map.putDouble("waitTotalMs", waitTotalNs.get() / 1e6);
+            map.putDouble("waitMaxMs", waitMaxNs.get() / 1e6);
+            map.putDouble("runTotalMs", runTotalNs.get() / 1e6);
+            map.putDouble("runMaxMs", runMaxNs.get() / 1e6);
+            map.putInt("maxLaneDepth", maxLaneDepth.get());
+            map.putArray("waitHistogram", histogramToArray(waitHistogram));
+            map.putArray("runHistogram", histogramToArray(runHistogram));
+            return map;
+        }
+    }
+
+    /**
+     * Registers the counters of a bridge method. Registering the same name
+     * more than once returns the same counters.
+     */
+    static Method register(String name) {
+        Method method = methods.get(name);
+        if (method == null) {
+            Method newMethod = new Method(name);
+            method = methods.putIfAbsent(name, newMethod);
+            if (method == null) {
+                method = newMethod;
+            }
+        }
+        return method;
+    }
+
+    /**
+     * Returns the counters of a method, registering them on first use.
+     */
+    static Method get(String name) {
+        Method method = methods.get(name);
+        return method != null ? method : register(name);
+    }
+
+    /**
+     * Invoked by {@link ThreadUtils} when a task is queued on a lane.
+     *
+     * @param method the method the task belongs to or <tt>null</tt>
+     * @param laneDepth the number of tasks queued on the lane, including the
+     * new one
+     */
+    static void onQueued(Method method, int laneDepth) {
+        updateMax(maxQueueDepth, queueDepth.incrementAndGet());
+        if (method != null) {
+            updateMax(method.maxLaneDepth, laneDepth);
+        }
+    }
+
+    /**
+     * Invoked by {@link ThreadUtils} after a task has run.
+     */
+    static void onRun(Method method, long queuedAtNs, long startNs, long endNs) {
+        queueDepth.decrementAndGet();
+        if (method != null) {
+            method.record(startNs - queuedAtNs, endNs - startNs);
+        }
+    }
+
+    /**
+     * Builds a snapshot of all the counters.
+     *
+     * @param reset whether to reset the counters after taking the snapshot
+     */
+    static WritableMap snapshot(boolean reset) {
+        WritableMap result = Arguments.createMap();
+        result.putInt("queueDepth", queueDepth.get());
+        result.putInt("maxQueueDepth", maxQueueDepth.get());
+
+        WritableArray buckets = Arguments.createArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.pushDouble(i == 0 ? 0 : (double) (1L << (i - 1)));
+        }
+        result.putArray("histogramBucketsUs", buckets);
+
+        WritableMap methodsMap = Arguments.createMap();
+        for (Method method : methods.values()) {
+            if (method.count.get() != 0) {
+                methodsMap.putMap(method.name, method.toWritableMap());
+            }
+            if (reset) {
+                method.reset();
+            }
+        }
+        result.putMap("methods", methodsMap);
+
+        if (reset) {
+            maxQueueDepth.set(queueDepth.get());
+        }
+        return result;
+    }
+
+    private static int bucket(long ns) {
+        long us = ns / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(us);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    private static WritableArray histogramToArray(AtomicLongArray histogram) {
+        WritableArray array = Arguments.createArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            array.pushDouble(histogram.get(i));
+        }
+        return array;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())
+                && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get())
+                && !max.compareAndSet(current, value)) {
+        }
+    }
+}
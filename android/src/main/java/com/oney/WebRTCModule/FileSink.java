@@ -0,0 +1,247 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes the binary messages received by a data channel to a local file
+ * instead of delivering them to JavaScript. The writes run on the lane of the
+ * PeerConnection, in the order in which the messages were received, so the
+ * thread delivering the messages never waits for the disk. Only throttled
+ * progress events and a final event reach JavaScript.
+ */
+class FileSink {
+    private final static String TAG = WebRTCModule.TAG;
+
+    static final String PROGRESS_EVENT = "dataChannelFileSinkProgress";
+    static final String ENDED_EVENT = "dataChannelFileSinkEnded";
+
+    private final WebRTCModule webRTCModule;
+    private final int peerConnectionId;
+    private final int handle;
+    private final String path;
+    private final long preallocate;
+    private final long expectedBytes;
+    private final long progressIntervalNs;
+    private final boolean append;
+    @Nullable
+    private final String checksumAlgorithm;
+
+    /**
+     * The object id of the coalescible progress events.
+     */
+    private final String progressId;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    @Nullable
+    private MessageDigest digest;
+    private long bytesWritten;
+    private long lastProgressAt;
+    private volatile boolean ended;
+    private String endState;
+    @Nullable
+    private String endError;
+    @Nullable
+    private String checksum;
+
+    /**
+     * @param options <tt>append</tt>, <tt>preallocate</tt> (the number of
+     * bytes to reserve up front), <tt>expectedBytes</tt> (after which the sink
+     * completes by itself), <tt>checksum</tt> (a <tt>MessageDigest</tt>
+     * algorithm such as <tt>"SHA-256"</tt>) and <tt>progressIntervalMs</tt>
+     * (defaults to 250)
+     */
+    FileSink(
+            WebRTCModule webRTCModule,
+            int peerConnectionId,
+            int handle,
+            String path,
+            @Nullable ReadableMap options) {
+        this.webRTCModule = webRTCModule;
+        this.peerConnectionId = peerConnectionId;
+        this.handle = handle;
+        this.path = path.startsWith("file://") ? path.substring(7) : path;
+        append
+            = options != null
+                && options.hasKey("append")
+                && options.getBoolean("append");
+        preallocate = getLong(options, "preallocate", 0);
+        expectedBytes = getLong(options, "expectedBytes", -1);
+        progressIntervalNs
+            = getLong(options, "progressIntervalMs", 250) * 1000000L;
+        checksumAlgorithm
+            = options != null && options.hasKey("checksum")
+                ? options.getString("checksum")
+                : null;
+        progressId = "sink:" + handle;
+    }
+
+    private static long getLong(
+            @Nullable ReadableMap options,
+            String key,
+            long defaultValue) {
+        return options != null && options.hasKey(key)
+            ? (long) options.getDouble(key)
+            : defaultValue;
+    }
+
+    /**
+     * Opens the file.
+     *
+     * @return <tt>null</tt> on success or an error message
+     */
+    @Nullable
+    String open() {
+        try {
+            if (checksumAlgorithm != null) {
+                digest = MessageDigest.getInstance(checksumAlgorithm);
+            }
+            file = new RandomAccessFile(new File(path), "rw");
+            channel = file.getChannel();
+            long start = append ? channel.size() : 0;
+            if (!append) {
+                channel.truncate(0);
+            }
+            if (preallocate > 0) {
+                file.setLength(start + preallocate);
+            }
+            channel.position(start);
+        } catch (NoSuchAlgorithmException e) {
+            return "Unsupported checksum: " + checksumAlgorithm;
+        } catch (IOException e) {
+            Log.e(TAG, "FileSink could not open " + path, e);
+            close();
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    /**
+     * Writes a received message. Runs on the lane of the PeerConnection.
+     */
+    void write(byte[] bytes) {
+        if (ended) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "FileSink could not write " + path, e);
+            end("failed", e.getMessage());
+            return;
+        }
+        if (digest != null) {
+            digest.update(bytes);
+        }
+        bytesWritten += bytes.length;
+
+        if (expectedBytes >= 0 && bytesWritten >= expectedBytes) {
+            end("completed", null);
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastProgressAt >= progressIntervalNs) {
+            lastProgressAt = now;
+            WritableMap params = Arguments.createMap();
+            params.putInt("handle", handle);
+            params.putInt("peerConnectionId", peerConnectionId);
+            params.putDouble("bytesWritten", bytesWritten);
+            webRTCModule.sendStateEvent(
+                PROGRESS_EVENT, params, peerConnectionId, progressId);
+        }
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Finishes the file: drops the unused preallocated space, flushes it to
+     * disk and closes it. Emits {@link #ENDED_EVENT} unless it has ended
+     * already. Runs on the lane of the PeerConnection.
+     *
+     * @param state <tt>"completed"</tt>, <tt>"detached"</tt>,
+     * <tt>"closed"</tt> or <tt>"failed"</tt>
+     * @return the result: <tt>state</tt>, <tt>bytesWritten</tt> and
+     * <tt>checksum</tt> (hex)
+     */
+    WritableMap end(String state, @Nullable String error) {
+        if (ended) {
+            return result(endState, endError);
+        }
+        ended = true;
+
+        if (channel != null && error == null) {
+            try {
+                if (preallocate > 0) {
+                    channel.truncate(channel.position());
+                }
+                channel.force(true);
+            } catch (IOException e) {
+                Log.e(TAG, "FileSink could not finish " + path, e);
+                state = "failed";
+                error = e.getMessage();
+            }
+        }
+        close();
+
+        if (digest != null && error == null) {
+            checksum = toHex(digest.digest());
+        }
+        endState = state;
+        endError = error;
+        webRTCModule.sendEvent(ENDED_EVENT, result(state, error));
+        return result(state, error);
+    }
+
+    private WritableMap result(String state, @Nullable String error) {
+        WritableMap result = Arguments.createMap();
+        result.putInt("handle", handle);
+        result.putInt("peerConnectionId", peerConnectionId);
+        result.putString("state", state);
+        result.putDouble("bytesWritten", bytesWritten);
+        if (checksum != null) {
+            result.putString("checksum", checksum);
+        }
+        if (error != null) {
+            result.putString("error", error);
+        }
+        return result;
+    }
+
+    private void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.d(TAG, "FileSink could not close " + path);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            hex[2 * i] = Character.forDigit(b >> 4, 16);
+            hex[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
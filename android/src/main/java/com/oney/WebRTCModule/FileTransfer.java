@@ -0,0 +1,241 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a local file over a data channel in binary messages, reading it
+ * through memory-mapped windows so the bytes never cross the bridge. Sends
+ * pause while more than <tt>maxBufferedAmount</tt> bytes are buffered and
+ * resume as the DataChannel drains. Only throttled progress events and a
+ * final event reach JavaScript.
+ * <p>
+ * All methods run on the lane of the PeerConnection.
+ */
+class FileTransfer {
+    private final static String TAG = WebRTCModule.TAG;
+
+    static final String PROGRESS_EVENT = "dataChannelFileTransferProgress";
+    static final String ENDED_EVENT = "dataChannelFileTransferEnded";
+
+    /**
+     * The size of the mapped windows of the file.
+     */
+    private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private final WebRTCModule webRTCModule;
+    private final int peerConnectionId;
+    private final int handle;
+    private final int transferId;
+    private final DataChannelObserver observer;
+    private final String path;
+    private int chunkSize;
+    private final long maxBufferedAmount;
+    private final long progressIntervalNs;
+
+    /**
+     * The object id of the coalescible progress events.
+     */
+    private final String progressId;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long position;
+    private long end;
+    private long start;
+
+    @Nullable
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private long lastProgressAt;
+    private boolean ended;
+
+    /**
+     * @param options <tt>chunkSize</tt> (defaults to 16 KiB),
+     * <tt>offset</tt>, <tt>length</tt>, <tt>maxBufferedAmount</tt> (defaults
+     * to 1 MiB) and <tt>progressIntervalMs</tt> (defaults to 250)
+     */
+    FileTransfer(
+            WebRTCModule webRTCModule,
+            int peerConnectionId,
+            int handle,
+            int transferId,
+            DataChannelObserver observer,
+            String path,
+            @Nullable ReadableMap options) {
+        this.webRTCModule = webRTCModule;
+        this.peerConnectionId = peerConnectionId;
+        this.handle = handle;
+        this.transferId = transferId;
+        this.observer = observer;
+        this.path = path.startsWith("file://") ? path.substring(7) : path;
+        chunkSize
+            = Math.max(1, Math.min(
+                WINDOW_SIZE, getInt(options, "chunkSize", 16 * 1024)));
+        maxBufferedAmount
+            = Math.max(chunkSize, getInt(options, "maxBufferedAmount", 1024 * 1024));
+        progressIntervalNs
+            = getInt(options, "progressIntervalMs", 250) * 1000000L;
+        start = getLong(options, "offset", 0);
+        end = getLong(options, "length", -1);
+        progressId = "file:" + transferId;
+    }
+
+    private static int getInt(
+            @Nullable ReadableMap options,
+            String key,
+            int defaultValue) {
+        return options != null && options.hasKey(key)
+            ? options.getInt(key)
+            : defaultValue;
+    }
+
+    private static long getLong(
+            @Nullable ReadableMap options,
+            String key,
+            long defaultValue) {
+        return options != null && options.hasKey(key)
+            ? (long) options.getDouble(key)
+            : defaultValue;
+    }
+
+    int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Opens the file and starts sending it.
+     */
+    void start() {
+        chunkSize = Math.min(chunkSize, observer.maxChunkSize());
+        try {
+            file = new RandomAccessFile(new File(path), "r");
+            channel = file.getChannel();
+            long size = channel.size();
+            start = Math.max(0, Math.min(start, size));
+            end = end < 0 ? size : Math.min(size, start + end);
+            position = start;
+        } catch (IOException e) {
+            Log.e(TAG, "FileTransfer could not open " + path, e);
+            finish("failed", e.getMessage());
+            return;
+        }
+        pump();
+    }
+
+    /**
+     * Sends chunks until the file is sent or the DataChannel has buffered
+     * enough. Invoked again as the DataChannel drains.
+     */
+    void pump() {
+        if (ended) {
+            return;
+        }
+        while (position < end) {
+            if (observer.isClosed()) {
+                finish("failed", "DataChannel closed");
+                return;
+            }
+            if (observer.bufferedAmount() >= maxBufferedAmount) {
+                maybeSendProgress(false);
+                return;
+            }
+            int size = (int) Math.min(chunkSize, end - position);
+            ByteBuffer chunk;
+            try {
+                chunk = chunk(size);
+            } catch (IOException e) {
+                Log.e(TAG, "FileTransfer could not read " + path, e);
+                finish("failed", e.getMessage());
+                return;
+            }
+            if (!observer.sendChunk(chunk)) {
+                finish("failed", "Send failed");
+                return;
+            }
+            position += size;
+        }
+        maybeSendProgress(true);
+        finish("completed", null);
+    }
+
+    /**
+     * Returns the next <tt>size</tt> bytes of the file as a slice of the
+     * current window, mapping the next window if necessary.
+     */
+    private ByteBuffer chunk(int size) throws IOException {
+        if (window == null || position + size > windowStart + window.capacity()) {
+            windowStart = position;
+            window
+                = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    windowStart,
+                    Math.min(WINDOW_SIZE, end - windowStart));
+        }
+        ByteBuffer chunk = window.duplicate();
+        int offset = (int) (position - windowStart);
+        chunk.position(offset);
+        chunk.limit(offset + size);
+        return chunk.slice();
+    }
+
+    void cancel() {
+        finish("cancelled", null);
+    }
+
+    private void maybeSendProgress(boolean force) {
+        long now = System.nanoTime();
+        if (!force && now - lastProgressAt < progressIntervalNs) {
+            return;
+        }
+        lastProgressAt = now;
+
+        WritableMap params = Arguments.createMap();
+        params.putInt("transferId", transferId);
+        params.putInt("handle", handle);
+        params.putInt("peerConnectionId", peerConnectionId);
+        params.putDouble("bytesSent", position - start);
+        params.putDouble("totalBytes", end - start);
+        webRTCModule.sendStateEvent(
+            PROGRESS_EVENT, params, peerConnectionId, progressId);
+    }
+
+    private void finish(String state, @Nullable String error) {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        window = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.d(TAG, "FileTransfer could not close " + path);
+            }
+        }
+        observer.onFileTransferEnded(this);
+
+        WritableMap params = Arguments.createMap();
+        params.putInt("transferId", transferId);
+        params.putInt("handle", handle);
+        params.putInt("peerConnectionId", peerConnectionId);
+        params.putString("state", state);
+        params.putDouble("bytesSent", Math.max(0, position - start));
+        if (error != null) {
+            params.putString("error", error);
+        }
+        webRTCModule.sendEvent(ENDED_EVENT, params);
+    }
+}
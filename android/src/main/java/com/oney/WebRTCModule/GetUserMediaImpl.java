@@ -10,9 +10,9 @@ import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.webrtc.*;
 
@@ -32,9 +32,10 @@ class GetUserMediaImpl {
     /**
      * The application/library-specific private members of local
      * {@link MediaStreamTrack}s created by {@code GetUserMediaImpl} mapped by
-     * track ID.
+     * track ID. Read from the PeerConnection lanes of {@link ThreadUtils} while
+     * being modified on the factory lane.
      */
-    private final Map<String, TrackPrivate> tracks = new HashMap<>();
+    private final Map<String, TrackPrivate> tracks = new ConcurrentHashMap<>();
 
     private final WebRTCModule webRTCModule;
 
@@ -0,0 +1,164 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Collects the messages received by a data channel for up to
+ * <tt>maxDelayMs</tt> milliseconds or <tt>maxBytes</tt> bytes and delivers
+ * them in order as a single {@link #EVENT} event.
+ */
+class MessageAggregator {
+    /**
+     * The event which carries the aggregated messages. Its <tt>messages</tt>
+     * are <tt>{type, data}</tt> maps in the order in which they were received.
+     */
+    static final String EVENT = "dataChannelReceiveMessages";
+
+    private final WebRTCModule webRTCModule;
+    private final int peerConnectionId;
+    private final int handle;
+    private final long maxDelayMs;
+    private final int maxBytes;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+
+    private WritableArray pending;
+    private int pendingCount;
+    private int pendingBytes;
+    private long firstReceivedAt;
+    private long receivedAtSum;
+
+    private long batchCount;
+    private long messageCount;
+    private long byteCount;
+    private int largestBatch;
+    private long latencyTotalNs;
+    private long latencyMaxNs;
+
+    /**
+     * @param config <tt>maxDelayMs</tt> (defaults to 50) and
+     * <tt>maxBytes</tt> (defaults to 16384)
+     */
+    MessageAggregator(
+            WebRTCModule webRTCModule,
+            int peerConnectionId,
+            int handle,
+            ReadableMap config) {
+        this.webRTCModule = webRTCModule;
+        this.peerConnectionId = peerConnectionId;
+        this.handle = handle;
+        maxDelayMs
+            = config.hasKey("maxDelayMs")
+                ? Math.max(0, config.getInt("maxDelayMs"))
+                : 50;
+        maxBytes
+            = config.hasKey("maxBytes")
+                ? Math.max(1, config.getInt("maxBytes"))
+                : 16384;
+    }
+
+    /**
+     * Adds a received message.
+     *
+     * @param type <tt>"text"</tt>, <tt>"binary"</tt> or <tt>"blob"</tt>
+     * @param data a <tt>String</tt> or, for a Blob, a <tt>WritableMap</tt>
+     * @param size the size of the message in bytes
+     */
+    void add(String type, Object data, int size) {
+        boolean flushNow;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (pendingCount == 0) {
+                pending = Arguments.createArray();
+                firstReceivedAt = now;
+                handler.postDelayed(flushRunnable, maxDelayMs);
+            }
+            WritableMap message = Arguments.createMap();
+            message.putString("type", type);
+            if (data instanceof WritableMap) {
+                message.putMap("data", (WritableMap) data);
+            } else {
+                message.putString("data", (String) data);
+            }
+            pending.pushMap(message);
+            pendingCount++;
+            pendingBytes += size;
+            receivedAtSum += now;
+            flushNow = pendingBytes >= maxBytes;
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Delivers the pending messages, if any.
+     */
+    void flush() {
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            handler.removeCallbacks(flushRunnable);
+
+            long now = System.nanoTime();
+            batchCount++;
+            messageCount += pendingCount;
+            byteCount += pendingBytes;
+            largestBatch = Math.max(largestBatch, pendingCount);
+            latencyTotalNs += pendingCount * now - receivedAtSum;
+            latencyMaxNs = Math.max(latencyMaxNs, now - firstReceivedAt);
+
+            WritableMap params = Arguments.createMap();
+            params.putInt("handle", handle);
+            params.putInt("peerConnectionId", peerConnectionId);
+            params.putArray("messages", pending);
+            pending = null;
+            pendingCount = 0;
+            pendingBytes = 0;
+            receivedAtSum = 0;
+
+            // Sending under the lock keeps the batches of a channel in order.
+            webRTCModule.sendEvent(EVENT, params);
+        }
+    }
+
+    /**
+     * Returns the batch size and latency counters of this channel. The
+     * latency of a message is the time it spent here.
+     *
+     * @param reset whether to reset the counters after taking the snapshot
+     */
+    synchronized WritableMap getStats(boolean reset) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("maxDelayMs", maxDelayMs);
+        stats.putInt("maxBytes", maxBytes);
+        stats.putDouble("batches", batchCount);
+        stats.putDouble("messages", messageCount);
+        stats.putDouble("bytes", byteCount);
+        stats.putDouble(
+            "averageBatchSize",
+            batchCount == 0 ? 0 : (double) messageCount / batchCount);
+        stats.putInt("largestBatch", largestBatch);
+        stats.putDouble(
+            "averageLatencyMs",
+            messageCount == 0 ? 0 : latencyTotalNs / 1e6 / messageCount);
+        stats.putDouble("maxLatencyMs", latencyMaxNs / 1e6);
+
+        if (reset) {
+            batchCount = 0;
+            messageCount = 0;
+            byteCount = 0;
+            largestBatch = 0;
+            latencyTotalNs = 0;
+            latencyMaxNs = 0;
+        }
+        return stats;
+    }
+}
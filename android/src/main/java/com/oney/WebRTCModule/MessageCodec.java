@@ -0,0 +1,112 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Converts the messages of a DataChannel between their bytes and the
+ * <tt>String</tt>s passed over the bridge: UTF-8 text as it is and binary
+ * data Base64-encoded. An instance keeps a scratch buffer for received
+ * messages and is not thread-safe.
+ */
+final class MessageCodec {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The largest message, in bytes, whose decoding uses the scratch buffer
+     * below.
+     */
+    static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private byte[] byteScratch = new byte[1024];
+
+    /**
+     * Returns the bytes of a message passed over the bridge or <tt>null</tt>
+     * if they cannot be decoded.
+     *
+     * @param type <tt>"text"</tt> or <tt>"binary"</tt> (Base64-encoded)
+     */
+    @Nullable
+    static byte[] fromBridge(String data, String type) {
+        if (type.equals("text")) {
+            try {
+                return data.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                Log.d(TAG, "Could not encode text string as UTF-8.");
+                return null;
+            }
+        } else if (type.equals("binary")) {
+            return Base64.decode(data, Base64.NO_WRAP);
+        } else {
+            Log.e(TAG, "Unsupported data type: " + type);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the scratch byte buffer, grown to hold at least the given
+     * number of bytes. Messages larger than {@link #MAX_POOLED_SIZE} get a
+     * buffer of their own so that a single large message does not pin its
+     * size.
+     */
+    private byte[] scratchBytes(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return new byte[size];
+        }
+        if (byteScratch.length < size) {
+            byteScratch
+                = new byte[Math.min(
+                    MAX_POOLED_SIZE,
+                    Math.max(size, byteScratch.length * 2))];
+        }
+        return byteScratch;
+    }
+
+    /**
+     * Base64-encodes the remaining bytes of a binary message without
+     * changing its position.
+     */
+    String encodeBase64(ByteBuffer data) {
+        int size = data.remaining();
+        if (data.hasArray()) {
+            return Base64.encodeToString(
+                data.array(),
+                data.arrayOffset() + data.position(),
+                size,
+                Base64.NO_WRAP);
+        }
+        byte[] bytes = scratchBytes(size);
+        data.duplicate().get(bytes, 0, size);
+        return Base64.encodeToString(bytes, 0, size, Base64.NO_WRAP);
+    }
+
+    /**
+     * Decodes UTF-8 text without changing the position of its buffer. The
+     * (usually direct) buffer is copied in bulk into the scratch byte buffer,
+     * so the resulting <tt>String</tt> is the only allocation. Malformed
+     * input is replaced with U+FFFD.
+     */
+    String decodeText(ByteBuffer data) {
+        int size = data.remaining();
+        if (size == 0) {
+            return "";
+        }
+        if (data.hasArray()) {
+            return new String(
+                data.array(),
+                data.arrayOffset() + data.position(),
+                size,
+                UTF_8);
+        }
+        byte[] bytes = scratchBytes(size);
+        data.duplicate().get(bytes, 0, size);
+        return new String(bytes, 0, size, UTF_8);
+    }
+}
@@ -0,0 +1,430 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The opt-in framing of the messages of a data channel, which splits large
+ * messages into chunks on the sending side and reassembles them on the
+ * receiving side. Both ends of the channel have to enable it.
+ * <p>
+ * Every message travels as a binary SCTP message starting with a flags byte.
+ * A message which fits into a chunk follows it right away. A chunk of a
+ * larger message is followed by the id of the message, its total size and
+ * the offset of the chunk (4 bytes each, big-endian), so chunks may arrive in
+ * any order. Since the chunks of a large message are sent as the buffer of
+ * the DataChannel drains, small messages sent in the meantime go out between
+ * them rather than after the whole message.
+ * <p>
+ * With compression enabled, messages of at least a threshold size are
+ * deflated before framing when that makes them smaller. A deflated message
+ * starts with its inflated size (4 bytes) and is flagged as such, so the
+ * receiving end inflates it whether or not it compresses its own messages.
+ */
+class MessageFraming {
+    private final static String TAG = WebRTCModule.TAG;
+
+    /**
+     * The frame carries a chunk of a larger message.
+     */
+    static final int FLAG_CHUNK = 0x01;
+
+    /**
+     * The message is text rather than binary.
+     */
+    static final int FLAG_TEXT = 0x10;
+
+    /**
+     * The message is deflated.
+     */
+    static final int FLAG_DEFLATE = 0x20;
+
+    static final int WHOLE_HEADER_SIZE = 1;
+    static final int CHUNK_HEADER_SIZE = 13;
+
+    final int chunkSize;
+    private final int maxReassemblyBytes;
+    private final long timeoutNs;
+
+    private int nextMessageId;
+
+    /**
+     * The compressor of the sent messages, if compression is enabled, along
+     * with its settings and output buffer. Used on the lane of the
+     * PeerConnection.
+     */
+    @Nullable
+    private Deflater deflater;
+    private int compressionThreshold;
+    private byte[] deflateScratch;
+
+    /**
+     * The decompressor of the received messages, created on first use. Used
+     * on the thread which delivers the messages.
+     */
+    @Nullable
+    private Inflater inflater;
+
+    /**
+     * The messages being reassembled by id, oldest first. Guarded by this
+     * instance since they also expire on {@link #handler}.
+     */
+    private final LinkedHashMap<Integer, Reassembly> reassemblies
+        = new LinkedHashMap<>();
+    private int reassemblyBytes;
+
+    /**
+     * Expires the incomplete messages of a peer which stopped sending their
+     * chunks, so that they do not pin memory until the next chunk or the
+     * closing of the channel.
+     */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable expireRunnable = this::onExpireTimer;
+    private boolean expireScheduled;
+
+    /**
+     * A message received in full.
+     */
+    static final class Message {
+        final ByteBuffer data;
+        final boolean binary;
+
+        Message(ByteBuffer data, boolean binary) {
+            this.data = data;
+            this.binary = binary;
+        }
+    }
+
+    private static final class Reassembly {
+        final byte[] bytes;
+        final int flags;
+        final long startedAt;
+        int received;
+
+        Reassembly(int size, int flags, long startedAt) {
+            bytes = new byte[size];
+            this.flags = flags;
+            this.startedAt = startedAt;
+        }
+    }
+
+    /**
+     * A message being sent, in a single frame or chunk by chunk.
+     */
+    final class Outgoing {
+        private final byte[] bytes;
+        private final int flags;
+        private final boolean chunked;
+        private final int messageId;
+        private int offset;
+
+        private Outgoing(byte[] bytes, int flags) {
+            this.bytes = bytes;
+            this.flags = flags;
+            chunked = bytes.length + WHOLE_HEADER_SIZE > chunkSize;
+            messageId = chunked ? nextMessageId++ : 0;
+        }
+
+        /**
+         * Whether the message is sent in more than one frame.
+         */
+        boolean isChunked() {
+            return chunked;
+        }
+
+        boolean isDone() {
+            return offset >= bytes.length;
+        }
+
+        int remaining() {
+            return bytes.length - offset;
+        }
+
+        /**
+         * Returns the next frame.
+         */
+        ByteBuffer nextChunk() {
+            if (!chunked) {
+                ByteBuffer frame
+                    = ByteBuffer.allocate(WHOLE_HEADER_SIZE + bytes.length);
+                frame.put((byte) flags);
+                frame.put(bytes);
+                frame.flip();
+                offset = bytes.length;
+                return frame;
+            }
+            int size = Math.min(chunkSize - CHUNK_HEADER_SIZE, remaining());
+            ByteBuffer frame = ByteBuffer.allocate(CHUNK_HEADER_SIZE + size);
+            frame.put((byte) (flags | FLAG_CHUNK));
+            frame.putInt(messageId);
+            frame.putInt(bytes.length);
+            frame.putInt(offset);
+            frame.put(bytes, offset, size);
+            frame.flip();
+            offset += size;
+            return frame;
+        }
+    }
+
+    /**
+     * @param config <tt>chunkSize</tt> (defaults to 16 KiB),
+     * <tt>maxReassemblyBytes</tt> (the memory available to messages being
+     * reassembled, defaults to 16 MiB) and <tt>timeoutMs</tt> (after which an
+     * incomplete message is dropped, defaults to 30 seconds)
+     */
+    MessageFraming(ReadableMap config) {
+        chunkSize
+            = Math.max(
+                CHUNK_HEADER_SIZE + 1,
+                config.hasKey("chunkSize")
+                    ? config.getInt("chunkSize")
+                    : 16 * 1024);
+        maxReassemblyBytes
+            = config.hasKey("maxReassemblyBytes")
+                ? config.getInt("maxReassemblyBytes")
+                : 16 * 1024 * 1024;
+        timeoutNs
+            = (config.hasKey("timeoutMs") ? config.getInt("timeoutMs") : 30000)
+                * 1000000L;
+    }
+
+    /**
+     * Enables the compression of the sent messages.
+     *
+     * @param config <tt>threshold</tt> (the size in bytes below which
+     * messages are sent as they are, defaults to 256) and <tt>level</tt>
+     * (0-9, defaults to 6)
+     */
+    void setCompression(ReadableMap config) {
+        compressionThreshold
+            = config.hasKey("threshold") ? config.getInt("threshold") : 256;
+        int level
+            = config.hasKey("level")
+                ? config.getInt("level")
+                : Deflater.DEFAULT_COMPRESSION;
+        if (deflater != null) {
+            deflater.end();
+        }
+        deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Prepares a message for sending, compressing it if enabled and worth
+     * it.
+     */
+    Outgoing encode(byte[] bytes, boolean binary) {
+        int flags = binary ? 0 : FLAG_TEXT;
+        if (deflater != null && bytes.length >= compressionThreshold) {
+            byte[] deflated = deflate(bytes);
+            if (deflated != null) {
+                return new Outgoing(deflated, flags | FLAG_DEFLATE);
+            }
+        }
+        return new Outgoing(bytes, flags);
+    }
+
+    /**
+     * Returns the deflated form of a message or <tt>null</tt> if it is not
+     * smaller.
+     */
+    @Nullable
+    private byte[] deflate(byte[] bytes) {
+        // Anything beyond the size of the message is not worth it.
+        int limit = 4 + bytes.length;
+        if (deflateScratch == null || deflateScratch.length < limit) {
+            deflateScratch = new byte[limit];
+        }
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        int length
+            = deflater.deflate(deflateScratch, 4, deflateScratch.length - 4);
+        if (!deflater.finished() || 4 + length >= bytes.length) {
+            return null;
+        }
+        ByteBuffer.wrap(deflateScratch).putInt(0, bytes.length);
+        return Arrays.copyOf(deflateScratch, 4 + length);
+    }
+
+    /**
+     * Returns a received message, inflated if necessary, or <tt>null</tt> if
+     * it is invalid.
+     */
+    @Nullable
+    private Message complete(ByteBuffer data, int flags) {
+        boolean binary = (flags & FLAG_TEXT) == 0;
+        if ((flags & FLAG_DEFLATE) == 0) {
+            return new Message(data, binary);
+        }
+        if (data.remaining() < 4) {
+            Log.d(TAG, "MessageFraming dropped a truncated deflated message");
+            return null;
+        }
+        int size = data.getInt();
+        if (size < 0 || size > maxReassemblyBytes) {
+            Log.w(TAG, "MessageFraming dropped a deflated message of "
+                + size + " bytes, over the reassembly limit");
+            return null;
+        }
+        byte[] input = new byte[data.remaining()];
+        data.get(input);
+        byte[] output = new byte[size];
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int n = inflater.inflate(output, length, size - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != size) {
+                Log.d(TAG, "MessageFraming dropped a deflated message of the wrong size");
+                return null;
+            }
+        } catch (DataFormatException e) {
+            Log.d(TAG, "MessageFraming dropped an invalid deflated message");
+            return null;
+        }
+        return new Message(ByteBuffer.wrap(output), binary);
+    }
+
+    /**
+     * Frames a binary message which does not need chunks.
+     */
+    ByteBuffer frameWhole(ByteBuffer data) {
+        ByteBuffer frame
+            = ByteBuffer.allocate(WHOLE_HEADER_SIZE + data.remaining());
+        frame.put((byte) 0);
+        frame.put(data);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Processes a received frame. Invoked on the single thread which
+     * delivers the messages of the channel.
+     *
+     * @return the message the frame completes or <tt>null</tt>
+     */
+    @Nullable
+    synchronized Message onFrame(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            Log.d(TAG, "MessageFraming dropped an empty frame");
+            return null;
+        }
+        frame = frame.duplicate();
+        int flags = frame.get();
+        if ((flags & FLAG_CHUNK) == 0) {
+            return complete(frame.slice(), flags);
+        }
+        if (frame.remaining() < CHUNK_HEADER_SIZE - 1) {
+            Log.d(TAG, "MessageFraming dropped a truncated chunk");
+            return null;
+        }
+        int messageId = frame.getInt();
+        int size = frame.getInt();
+        int offset = frame.getInt();
+        int length = frame.remaining();
+
+        long now = System.nanoTime();
+        expire(now);
+
+        Reassembly reassembly = reassemblies.get(messageId);
+        if (reassembly == null) {
+            if (size < 0 || reassemblyBytes + size > maxReassemblyBytes) {
+                Log.w(TAG, "MessageFraming dropped message " + messageId
+                    + " of " + size + " bytes, over the reassembly limit");
+                return null;
+            }
+            reassembly = new Reassembly(size, flags & ~FLAG_CHUNK, now);
+            reassemblies.put(messageId, reassembly);
+            reassemblyBytes += size;
+            scheduleExpire(now);
+        }
+        if (offset < 0 || offset + length > reassembly.bytes.length) {
+            Log.d(TAG, "MessageFraming dropped a chunk out of bounds");
+            return null;
+        }
+        frame.get(reassembly.bytes, offset, length);
+        reassembly.received += length;
+        if (reassembly.received < reassembly.bytes.length) {
+            return null;
+        }
+        reassemblies.remove(messageId);
+        reassemblyBytes -= reassembly.bytes.length;
+        return complete(ByteBuffer.wrap(reassembly.bytes), reassembly.flags);
+    }
+
+    /**
+     * Drops the messages whose reassembly has timed out.
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<Integer, Reassembly>> i
+            = reassemblies.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Integer, Reassembly> entry = i.next();
+            Reassembly reassembly = entry.getValue();
+            if (now - reassembly.startedAt < timeoutNs) {
+                // The rest started later.
+                break;
+            }
+            Log.w(TAG, "MessageFraming dropped incomplete message "
+                + entry.getKey() + " after a timeout");
+            reassemblyBytes -= reassembly.bytes.length;
+            i.remove();
+        }
+    }
+
+    /**
+     * Drops the messages being reassembled and stops expiring them. Invoked
+     * when the channel closes or its framing is replaced.
+     */
+    synchronized void close() {
+        reassemblies.clear();
+        reassemblyBytes = 0;
+        if (expireScheduled) {
+            expireScheduled = false;
+            handler.removeCallbacks(expireRunnable);
+        }
+    }
+
+    /**
+     * Makes sure that {@link #expireRunnable} runs when the oldest message
+     * being reassembled times out.
+     */
+    private void scheduleExpire(long now) {
+        if (expireScheduled || reassemblies.isEmpty()) {
+            return;
+        }
+        Reassembly oldest = reassemblies.values().iterator().next();
+        long delayMs = (oldest.startedAt + timeoutNs - now) / 1000000L;
+        expireScheduled = true;
+        handler.postDelayed(expireRunnable, Math.max(0, delayMs) + 1);
+    }
+
+    private synchronized void onExpireTimer() {
+        expireScheduled = false;
+        long now = System.nanoTime();
+        expire(now);
+        scheduleExpire(now);
+    }
+}
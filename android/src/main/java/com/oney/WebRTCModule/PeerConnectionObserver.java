@@ -1,22 +1,23 @@
 package com.oney.WebRTCModule;
 
-import java.io.UnsupportedEncodingException;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.support.annotation.Nullable;
-import android.util.Base64;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
@@ -27,6 +28,8 @@ import org.webrtc.IceCandidate;
 import org.webrtc.MediaStream;
 import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
 import org.webrtc.StatsObserver;
@@ -37,8 +40,7 @@ import org.webrtc.RtpTransceiver;
 class PeerConnectionObserver implements PeerConnection.Observer {
     private final static String TAG = WebRTCModule.TAG;
 
-    private final SparseArray<DataChannel> dataChannels
-        = new SparseArray<DataChannel>();
+    private final DataChannelRegistry dataChannels = new DataChannelRegistry();
     private final int id;
     private PeerConnection peerConnection;
     final List<MediaStream> localStreams;
@@ -50,21 +52,34 @@ class PeerConnectionObserver implements PeerConnection.Observer {
     private final WebRTCModule webRTCModule;
 
     /**
-     * The <tt>StringBuilder</tt> cache utilized by {@link #statsToJSON} in
-     * order to minimize the number of allocations of <tt>StringBuilder</tt>
-     * instances and, more importantly, the allocations of its <tt>char</tt>
-     * buffer in an attempt to improve performance.
+     * The writer utilized by {@link #statsToJSON} and
+     * {@link #statsReportToJSON} in order to reuse its <tt>char</tt> buffer
+     * across getStats calls. Synchronized upon while in use because the
+     * stats callbacks are invoked on the signaling thread.
      */
-    private SoftReference<StringBuilder> statsToJSONStringBuilder
-        = new SoftReference<>(null);
+    private final StatsJsonWriter statsJsonWriter = new StatsJsonWriter();
+
+    /**
+     * Samples the stats of {@link #peerConnection} for the consumers which
+     * want them periodically, created on first use.
+     */
+    @Nullable
+    private StatsSampler statsSampler;
+    @Nullable
+    private StatsDeltaEncoder statsDeltaEncoder;
+    @Nullable
+    private StatsHistory statsHistory;
+    @Nullable
+    private QualityEstimator qualityEstimator;
 
     PeerConnectionObserver(WebRTCModule webRTCModule, int id) {
         this.webRTCModule = webRTCModule;
         this.id = id;
         this.localStreams = new ArrayList<MediaStream>();
         this.localTracks = new ArrayList<MediaStreamTrack>();
-        this.remoteStreams = new HashMap<String, MediaStream>();
-        this.remoteTracks = new HashMap<String, MediaStreamTrack>();
+        // Written on the signaling thread and read on the factory lane.
+        this.remoteStreams = new ConcurrentHashMap<String, MediaStream>();
+        this.remoteTracks = new ConcurrentHashMap<String, MediaStreamTrack>();
         this.senders = new HashMap<String, RtpSender>();
         this.videoTrackAdapters = new VideoTrackAdapter(webRTCModule, id);
     }
@@ -203,6 +218,9 @@ class PeerConnectionObserver implements PeerConnection.Observer {
 
     void close() {
         Log.d(TAG, "START pc.close ------------------- " + "peerConnection ID: " + id);
+        if (statsSampler != null) {
+            statsSampler.stop();
+        }
         // Remove video track adapters
         for (MediaStream stream : remoteStreams.values()) {
             for (VideoTrack videoTrack : stream.videoTracks) {
@@ -213,6 +231,8 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         //Call dispose() to free all remaining resources held
         // by the PeerConnection instance (RtpReceivers, RtpSenders, etc.)
         peerConnection.dispose();
+        // Lets the getPeerConnection() == null checks see the disposal.
+        peerConnection = null;
         localTracks.clear();
         localStreams.clear();
         remoteStreams.clear();
@@ -221,11 +241,22 @@ class PeerConnectionObserver implements PeerConnection.Observer {
 
         // Unlike on iOS, we cannot unregister the DataChannel.Observer
         // instance on Android. At least do whatever else we do on iOS.
+        for (DataChannelObserver observer : dataChannels.values()) {
+            FileTransfer transfer = observer.getFileTransfer();
+            if (transfer != null) {
+                transfer.cancel();
+            }
+            observer.detachFileSink("closed");
+        }
         dataChannels.clear();
         Log.d(TAG, "END pc.close -------------------");
     }
 
-    void createDataChannel(String label, ReadableMap config) {
+    /**
+     * Creates a data channel and registers it under the handle assigned to
+     * it by JavaScript, whether or not its id is known yet.
+     */
+    void createDataChannel(int handle, String label, ReadableMap config) {
         DataChannel.Init init = new DataChannel.Init();
         if (config != null) {
             if (config.hasKey("id")) {
@@ -248,57 +279,245 @@ class PeerConnectionObserver implements PeerConnection.Observer {
             }
         }
         DataChannel dataChannel = peerConnection.createDataChannel(label, init);
-        int dataChannelId = init.id;
-        if (-1 != dataChannelId) {
-            dataChannels.put(dataChannelId, dataChannel);
-            registerDataChannelObserver(dataChannelId, dataChannel);
+        if (dataChannel == null) {
+            Log.d(TAG, "createDataChannel() failed");
+            return;
+        }
+        DataChannelObserver observer
+            = registerDataChannelObserver(handle, dataChannel);
+        if (config != null) {
+            applyDataChannelOptions(observer, config);
+        }
+    }
+
+    /**
+     * Applies the native options of a data channel: <tt>aggregation</tt>,
+     * <tt>sendQueue</tt> and <tt>maxBufferedAmount</tt>, <tt>framing</tt>
+     * and <tt>compression</tt>.
+     */
+    private static void applyDataChannelOptions(
+            DataChannelObserver observer,
+            ReadableMap options) {
+        if (options.hasKey("aggregation")) {
+            observer.setAggregation(options.getMap("aggregation"));
+        }
+        if (options.hasKey("sendQueue")) {
+            observer.setSendQueue(
+                options.getBoolean("sendQueue"),
+                options.hasKey("maxBufferedAmount")
+                    ? (long) options.getDouble("maxBufferedAmount")
+                    : 0);
+        }
+        if (options.hasKey("framing")) {
+            observer.setFraming(options.getMap("framing"));
+        }
+        if (options.hasKey("compression")) {
+            observer.setCompression(options.getMap("compression"));
         }
     }
 
-    void dataChannelClose(int dataChannelId) {
-        DataChannel dataChannel = dataChannels.get(dataChannelId);
-        if (dataChannel != null) {
-            dataChannel.close();
-            dataChannels.remove(dataChannelId);
+    /**
+     * Applies native options to an existing data channel, typically one
+     * announced by the remote peer.
+     */
+    void dataChannelSetOptions(int handle, ReadableMap options) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer != null) {
+            applyDataChannelOptions(observer, options);
+        } else {
+            Log.d(TAG, "dataChannelSetOptions() dataChannel is null");
+        }
+    }
+
+    void dataChannelClose(int handle) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer != null) {
+            observer.close();
         } else {
             Log.d(TAG, "dataChannelClose() dataChannel is null");
         }
     }
 
-    void dataChannelSend(int dataChannelId, String data, String type) {
-        DataChannel dataChannel = dataChannels.get(dataChannelId);
-        if (dataChannel != null) {
-            byte[] byteArray;
-            if (type.equals("text")) {
-                try {
-                    byteArray = data.getBytes("UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    Log.d(TAG, "Could not encode text string as UTF-8.");
-                    return;
+    void dataChannelSend(int handle, String data, String type) {
+        byte[] byteArray = MessageCodec.fromBridge(data, type);
+        if (byteArray != null) {
+            dataChannelSend(handle, byteArray, type.equals("binary"));
+        }
+    }
+
+    /**
+     * Sends a batch of messages in order. A message which cannot be sent
+     * does not stop the rest.
+     *
+     * @param messages <tt>{handle, data, type}</tt> maps, <tt>handle</tt>
+     * being the handle of the data channel
+     * @param blobs the bytes of the messages of type <tt>"blob"</tt>, resolved
+     * beforehand, at the same indices
+     * @return <tt>{sent, failed, failures}</tt>, <tt>failures</tt> being
+     * <tt>{index, error}</tt> maps
+     */
+    WritableMap dataChannelSendBatch(ReadableArray messages, byte[][] blobs) {
+        int sent = 0;
+        WritableArray failures = Arguments.createArray();
+        for (int i = 0, size = messages.size(); i < size; i++) {
+            ReadableMap message = messages.getMap(i);
+            String type = message.getString("type");
+            String error = null;
+            DataChannelObserver observer
+                = dataChannels.get(message.getInt("handle"));
+            if (observer == null) {
+                error = "DataChannel not found";
+            } else {
+                byte[] bytes
+                    = type.equals("blob")
+                        ? blobs[i]
+                        : MessageCodec.fromBridge(message.getString("data"), type);
+                if (bytes == null) {
+                    error = "Invalid data";
+                } else if (!observer.send(bytes, !type.equals("text"))) {
+                    error = "Send failed";
                 }
-            } else if (type.equals("binary")) {
-                byteArray = Base64.decode(data, Base64.NO_WRAP);
+            }
+            if (error == null) {
+                sent++;
             } else {
-                Log.e(TAG, "Unsupported data type: " + type);
-                return;
+                WritableMap failure = Arguments.createMap();
+                failure.putInt("index", i);
+                failure.putString("error", error);
+                failures.pushMap(failure);
             }
-            ByteBuffer byteBuffer = ByteBuffer.wrap(byteArray);
-            DataChannel.Buffer buffer = new DataChannel.Buffer(byteBuffer, type.equals("binary"));
-            dataChannel.send(buffer);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putInt("sent", sent);
+        result.putInt("failed", messages.size() - sent);
+        result.putArray("failures", failures);
+        return result;
+    }
+
+    /**
+     * Sends the given bytes as they are. The DataChannel copies them into
+     * native memory, which is the only copy on the way from a Blob.
+     */
+    void dataChannelSend(int handle, byte[] bytes, boolean binary) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer != null) {
+            observer.send(bytes, binary);
         } else {
             Log.d(TAG, "dataChannelSend() dataChannel is null");
         }
     }
 
+    void dataChannelSetBufferedAmountLowThreshold(
+            int handle,
+            long threshold) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer != null) {
+            observer.setBufferedAmountLowThreshold(threshold);
+        } else {
+            Log.d(TAG, "dataChannelSetBufferedAmountLowThreshold() dataChannel is null");
+        }
+    }
+
+    @Nullable
+    WritableMap dataChannelGetAggregationStats(int handle, boolean reset) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        return observer == null ? null : observer.getAggregationStats(reset);
+    }
+
+    /**
+     * Starts streaming a local file over a data channel.
+     *
+     * @return <tt>null</tt> on success or an error message
+     */
+    @Nullable
+    String dataChannelSendFile(
+            int handle,
+            int transferId,
+            String path,
+            @Nullable ReadableMap options) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer == null) {
+            Log.d(TAG, "dataChannelSendFile() dataChannel is null");
+            return "DataChannel not found";
+        }
+        FileTransfer transfer
+            = new FileTransfer(
+                webRTCModule, id, handle, transferId, observer, path,
+                options);
+        if (!observer.startFileTransfer(transfer)) {
+            return "Another file is being sent";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the binary messages received by a data channel to a file.
+     *
+     * @return <tt>null</tt> on success or an error message
+     */
+    @Nullable
+    String dataChannelAttachFileSink(
+            int handle,
+            String path,
+            @Nullable ReadableMap options) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer == null) {
+            Log.d(TAG, "dataChannelAttachFileSink() dataChannel is null");
+            return "DataChannel not found";
+        }
+        if (!observer.canAttachFileSink()) {
+            return "Another file sink is attached";
+        }
+        FileSink sink = new FileSink(webRTCModule, id, handle, path, options);
+        String error = sink.open();
+        if (error == null) {
+            observer.attachFileSink(sink);
+        }
+        return error;
+    }
+
+    @Nullable
+    WritableMap dataChannelDetachFileSink(int handle) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        return observer == null ? null : observer.detachFileSink("detached");
+    }
+
+    void dataChannelCancelFileTransfer(int transferId) {
+        for (DataChannelObserver observer : dataChannels.values()) {
+            FileTransfer transfer = observer.getFileTransfer();
+            if (transfer != null && transfer.getTransferId() == transferId) {
+                transfer.cancel();
+                return;
+            }
+        }
+        Log.d(TAG, "dataChannelCancelFileTransfer() transfer not found");
+    }
+
+    void dataChannelSetBinaryType(int handle, String binaryType) {
+        DataChannelObserver observer = dataChannels.get(handle);
+        if (observer != null) {
+            observer.setBinaryType(binaryType);
+        } else {
+            Log.d(TAG, "dataChannelSetBinaryType() dataChannel is null");
+        }
+    }
+
+    /**
+     * Gets the legacy stats of this PeerConnection, serializing only those
+     * accepted by the given filter, if any.
+     */
     @SuppressWarnings("deprecation") // TODO(saghul): getStats is deprecated.
-    void getStats(String trackId, final Callback cb) {
+    void getStats(
+            String trackId,
+            @Nullable final StatsFilter filter,
+            final Callback cb) {
         MediaStreamTrack track = null;
         if (trackId == null
                 || trackId.isEmpty()
                 || (track = webRTCModule.getLocalTrack(trackId)) != null
                 || (track = remoteTracks.get(trackId)) != null) {
             peerConnection.getStats(
-                reports -> cb.invoke(true, statsToJSON(reports)),
+                reports -> cb.invoke(true, statsToJSON(reports, filter)),
                     track);
         } else {
             Log.e(TAG, "peerConnectionGetStats() MediaStreamTrack not found for id: " + trackId);
@@ -306,6 +525,290 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         }
     }
 
+    /**
+     * Collects the stats of this PeerConnection with the
+     * <tt>RTCStatsCollectorCallback</tt> API and passes them to the callback
+     * as the JSON of an <tt>RTCStatsReport</tt>: an object of the stats by
+     * id, with typed values.
+     *
+     * @param options <tt>trackId</tt> limits the report to the RTP streams
+     * of the sender or the receiver of a track and the stats they reference,
+     * directly or indirectly. <tt>scope</tt> (<tt>"sender"</tt> or
+     * <tt>"receiver"</tt>) tells which; by default it is the sender of a
+     * local track and the receiver of a remote one. <tt>filter</tt> is a
+     * {@link StatsFilter} spec.
+     */
+    void getStatsReport(@Nullable ReadableMap options, final Callback cb) {
+        final StatsFilter filter
+            = options != null && options.hasKey("filter")
+                ? StatsFilter.fromMap(options.getMap("filter"))
+                : null;
+        String trackId
+            = options != null && options.hasKey("trackId")
+                ? options.getString("trackId")
+                : null;
+        if (trackId == null || trackId.isEmpty()) {
+            getStatsReport(filter, cb);
+            return;
+        }
+
+        String scope
+            = options.hasKey("scope") ? options.getString("scope") : null;
+        if (scope == null) {
+            if (webRTCModule.getLocalTrack(trackId) != null) {
+                scope = "sender";
+            } else if (remoteTracks.containsKey(trackId)) {
+                scope = "receiver";
+            } else {
+                Log.e(TAG, "peerConnectionGetStatsReport() MediaStreamTrack not found for id: " + trackId);
+                cb.invoke(false, "Track not found");
+                return;
+            }
+        }
+        final boolean sender = scope.equals("sender");
+        peerConnection.getStats(
+            report -> cb.invoke(
+                true,
+                statsReportToJSON(
+                    report,
+                    selectStats(report, trackId, sender),
+                    filter)));
+    }
+
+    /**
+     * Gets the whole stats report of this PeerConnection as JSON.
+     *
+     * @param filter the stats and members to write or <tt>null</tt> for all
+     * @param cb invoked with <tt>true</tt> and the JSON of the report
+     */
+    void getStatsReport(@Nullable StatsFilter filter, Callback cb) {
+        peerConnection.getStats(
+            report -> cb.invoke(
+                true,
+                statsReportToJSON(report, null, filter)));
+    }
+
+    /**
+     * Selects the stats of the RTP streams of the sender or the receiver of
+     * a track and all the stats they reference through their <tt>*Id</tt>
+     * members, as the stats selection algorithm of the WebRTC specification
+     * does.
+     *
+     * @return the ids of the selected stats
+     */
+    private static Set<String> selectStats(
+            RTCStatsReport report,
+            String trackId,
+            boolean sender) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        String type = sender ? "outbound-rtp" : "inbound-rtp";
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        for (RTCStats stats : statsMap.values()) {
+            if (stats.getType().equals(type)
+                    && trackId.equals(getTrackIdentifier(statsMap, stats))) {
+                pending.add(stats.getId());
+            }
+        }
+
+        Set<String> selected = new HashSet<>();
+        String id;
+        while ((id = pending.poll()) != null) {
+            if (!selected.add(id)) {
+                continue;
+            }
+            for (Map.Entry<String, Object> member
+                    : statsMap.get(id).getMembers().entrySet()) {
+                String name = member.getKey();
+                Object value = member.getValue();
+                if (name.endsWith("Id")
+                        && value instanceof String
+                        && statsMap.containsKey(value)) {
+                    pending.add((String) value);
+                } else if (name.endsWith("Ids") && value instanceof String[]) {
+                    for (String ref : (String[]) value) {
+                        if (statsMap.containsKey(ref)) {
+                            pending.add(ref);
+                        }
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the id of the track of an RTP stream, which depending on the
+     * version of libwebrtc is a member of the stream itself or of the
+     * <tt>track</tt> or <tt>media-source</tt> stats it references.
+     */
+    @Nullable
+    static Object getTrackIdentifier(
+            Map<String, RTCStats> statsMap,
+            RTCStats stats) {
+        Map<String, Object> members = stats.getMembers();
+        Object trackIdentifier = members.get("trackIdentifier");
+        if (trackIdentifier != null) {
+            return trackIdentifier;
+        }
+        for (String name : new String[] { "trackId", "mediaSourceId" }) {
+            Object ref = members.get(name);
+            RTCStats referenced = ref == null ? null : statsMap.get(ref);
+            if (referenced != null) {
+                trackIdentifier = referenced.getMembers().get("trackIdentifier");
+                if (trackIdentifier != null) {
+                    return trackIdentifier;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the given stats, or the selected ones, as the JSON of an
+     * <tt>RTCStatsReport</tt>.
+     *
+     * @param ids the ids of the stats to write or <tt>null</tt> for all
+     * @param filter the stats and members to write or <tt>null</tt> for all
+     */
+    private String statsReportToJSON(
+            RTCStatsReport report,
+            @Nullable Set<String> ids,
+            @Nullable StatsFilter filter) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        StatsJsonWriter writer = statsJsonWriter;
+        synchronized (writer) {
+            writer.beginObject();
+            for (RTCStats stats : statsMap.values()) {
+                if (ids != null && !ids.contains(stats.getId())) {
+                    continue;
+                }
+                if (filter != null
+                        && (!filter.acceptsType(stats.getType())
+                            || !filter.acceptsTrack(
+                                getTrackIdentifier(statsMap, stats)))) {
+                    continue;
+                }
+                writer.name(stats.getId()).beginObject()
+                    .literalName("id").value(stats.getId())
+                    .literalName("type").value(stats.getType())
+                    .literalName("timestamp").value(stats.getTimestampUs() / 1000);
+                for (Map.Entry<String, Object> member
+                        : stats.getMembers().entrySet()) {
+                    String name = member.getKey();
+                    if (filter == null || filter.acceptsValue(name)) {
+                        writer.name(name).value(member.getValue());
+                    }
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            return writer.finish();
+        }
+    }
+
+    private StatsSampler getStatsSampler() {
+        if (statsSampler == null) {
+            statsSampler = new StatsSampler(id, peerConnection);
+        }
+        return statsSampler;
+    }
+
+    /**
+     * Starts emitting the changes of the stats of this PeerConnection every
+     * <tt>intervalMs</tt> milliseconds (defaults to 1000), limited to the
+     * stats accepted by <tt>filter</tt> (a {@link StatsFilter} spec), if
+     * any. Subscribing again starts over with a full delta.
+     */
+    void subscribeStats(@Nullable ReadableMap options) {
+        long intervalMs
+            = options != null && options.hasKey("intervalMs")
+                ? (long) options.getDouble("intervalMs")
+                : 1000;
+        StatsSampler sampler = getStatsSampler();
+        if (statsDeltaEncoder != null) {
+            sampler.removeListener(statsDeltaEncoder);
+        }
+        statsDeltaEncoder
+            = new StatsDeltaEncoder(
+                webRTCModule,
+                id,
+                options != null && options.hasKey("filter")
+                    ? StatsFilter.fromMap(options.getMap("filter"))
+                    : null);
+        sampler.addListener(statsDeltaEncoder, intervalMs);
+    }
+
+    /**
+     * Starts keeping the history of selected stats every
+     * <tt>intervalMs</tt> milliseconds (defaults to 1000), replacing the
+     * current one, if any.
+     *
+     * @param config <tt>intervalMs</tt> and the config of
+     * {@link StatsHistory}
+     */
+    void startStatsHistory(ReadableMap config) {
+        long intervalMs
+            = config.hasKey("intervalMs")
+                ? (long) config.getDouble("intervalMs")
+                : 1000;
+        StatsSampler sampler = getStatsSampler();
+        if (statsHistory != null) {
+            sampler.removeListener(statsHistory);
+        }
+        statsHistory = new StatsHistory(config);
+        sampler.addListener(statsHistory, intervalMs);
+    }
+
+    /**
+     * Stops keeping the history of the stats and frees it.
+     */
+    void stopStatsHistory() {
+        if (statsHistory != null) {
+            getStatsSampler().removeListener(statsHistory);
+            statsHistory = null;
+        }
+    }
+
+    @Nullable
+    StatsHistory getStatsHistory() {
+        return statsHistory;
+    }
+
+    /**
+     * Starts estimating the quality of the tracks of this PeerConnection
+     * from its stats sampled every <tt>intervalMs</tt> milliseconds
+     * (defaults to 1000), replacing the current estimation, if any.
+     *
+     * @param config <tt>intervalMs</tt> and the config of
+     * {@link QualityEstimator}
+     */
+    void startQualityEstimation(ReadableMap config) {
+        long intervalMs
+            = config.hasKey("intervalMs")
+                ? (long) config.getDouble("intervalMs")
+                : 1000;
+        StatsSampler sampler = getStatsSampler();
+        if (qualityEstimator != null) {
+            sampler.removeListener(qualityEstimator);
+        }
+        qualityEstimator = new QualityEstimator(webRTCModule, id, config);
+        sampler.addListener(qualityEstimator, intervalMs);
+    }
+
+    void stopQualityEstimation() {
+        if (qualityEstimator != null) {
+            getStatsSampler().removeListener(qualityEstimator);
+            qualityEstimator = null;
+        }
+    }
+
+    void unsubscribeStats() {
+        if (statsDeltaEncoder != null) {
+            getStatsSampler().removeListener(statsDeltaEncoder);
+            statsDeltaEncoder = null;
+        }
+    }
+
     /**
      * Constructs a JSON <tt>String</tt> representation of a specific array of
      * <tt>StatsReport</tt>s (produced by {@link PeerConnection#getStats}).
@@ -317,51 +820,54 @@ class PeerConnectionObserver implements PeerConnection.Observer {
      *
      * @param reports the array of <tt>StatsReport</tt>s to represent in JSON
      * format
+     * @param filter the reports and values to represent or <tt>null</tt> for
+     * all of them
      * @return a <tt>String</tt> which represents the specified <tt>reports</tt>
      * in JSON format
      */
-    private String statsToJSON(StatsReport[] reports) {
-        // If possible, reuse a single StringBuilder instance across multiple
-        // getStats method calls in order to reduce the total number of
-        // allocations.
-        StringBuilder s = statsToJSONStringBuilder.get();
-        if (s == null) {
-            s = new StringBuilder();
-            statsToJSONStringBuilder = new SoftReference(s);
-        }
-
-        s.append('[');
-        final int reportCount = reports.length;
-        for (int i = 0; i < reportCount; ++i) {
-            StatsReport report = reports[i];
-            if (i != 0) {
-                s.append(',');
-            }
-            s.append("{\"id\":\"").append(report.id)
-                .append("\",\"type\":\"").append(report.type)
-                .append("\",\"timestamp\":").append(report.timestamp)
-                .append(",\"values\":[");
-            StatsReport.Value[] values = report.values;
-            final int valueCount = values.length;
-            for (int j = 0; j < valueCount; ++j) {
-                StatsReport.Value v = values[j];
-                if (j != 0) {
-                    s.append(',');
+    private String statsToJSON(
+            StatsReport[] reports,
+            @Nullable StatsFilter filter) {
+        StatsJsonWriter writer = statsJsonWriter;
+        synchronized (writer) {
+            writer.beginArray();
+            for (StatsReport report : reports) {
+                if (filter != null
+                        && (!filter.acceptsType(report.type)
+                            || !filter.acceptsTrack(getTrackId(report)))) {
+                    continue;
                 }
-                s.append("{\"").append(v.name).append("\":\"").append(v.value)
-                    .append("\"}");
+                writer.beginObject()
+                    .literalName("id").value(report.id)
+                    .literalName("type").value(report.type)
+                    .literalName("timestamp").valueAsDouble(report.timestamp)
+                    .literalName("values").beginArray();
+                for (StatsReport.Value v : report.values) {
+                    if (filter == null || filter.acceptsValue(v.name)) {
+                        writer.beginObject()
+                            .name(v.name).value(v.value)
+                            .endObject();
+                    }
+                }
+                writer.endArray().endObject();
             }
-            s.append("]}");
+            writer.endArray();
+            return writer.finish();
         }
-        s.append("]");
-
-        String r = s.toString();
-        // Prepare the StringBuilder instance for reuse (in order to reduce the
-        // total number of allocations performed during multiple getStats method
-        // calls).
-        s.setLength(0);
+    }
 
-        return r;
+    /**
+     * Returns the id of the track a legacy report belongs to or
+     * <tt>null</tt>.
+     */
+    @Nullable
+    private static String getTrackId(StatsReport report) {
+        for (StatsReport.Value v : report.values) {
+            if (v.name.equals("googTrackId")) {
+                return v.value;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -389,7 +895,7 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         params.putInt("id", id);
         params.putString("iceConnectionState", iceConnectionStateString(iceConnectionState));
 
-        webRTCModule.sendEvent("peerConnectionIceConnectionChanged", params);
+        webRTCModule.sendStateEvent("peerConnectionIceConnectionChanged", params, id, null);
     }
 
     @Override
@@ -402,7 +908,7 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         WritableMap params = Arguments.createMap();
         params.putInt("id", id);
         params.putString("iceGatheringState", iceGatheringStateString(iceGatheringState));
-        webRTCModule.sendEvent("peerConnectionIceGatheringChanged", params);
+        webRTCModule.sendStateEvent("peerConnectionIceGatheringChanged", params, id, null);
     }
 
     private String getReactTagForStream(MediaStream mediaStream) {
@@ -519,37 +1025,45 @@ class PeerConnectionObserver implements PeerConnection.Observer {
 
     @Override
     public void onDataChannel(DataChannel dataChannel) {
-        final int dataChannelId = dataChannel.id();
-        if (-1 == dataChannelId) {
-          return;
+        int handle = dataChannels.allocateRemote();
+        if (handle == -1) {
+            Log.e(TAG, "onDataChannel() no handle available");
+            return;
         }
 
         WritableMap dataChannelParams = Arguments.createMap();
-        dataChannelParams.putInt("id", dataChannelId);
+        dataChannelParams.putInt("handle", handle);
+        dataChannelParams.putInt("id", dataChannel.id());
         dataChannelParams.putString("label", dataChannel.label());
         WritableMap params = Arguments.createMap();
         params.putInt("id", id);
         params.putMap("dataChannel", dataChannelParams);
 
-        dataChannels.put(dataChannelId, dataChannel);
-        registerDataChannelObserver(dataChannelId, dataChannel);
+        // Registered before the event is sent so that no message is missed.
+        registerDataChannelObserver(handle, dataChannel);
 
         webRTCModule.sendEvent("peerConnectionDidOpenDataChannel", params);
     }
 
-    private void registerDataChannelObserver(int dcId, DataChannel dataChannel) {
+    private DataChannelObserver registerDataChannelObserver(
+            int handle,
+            DataChannel dataChannel) {
         // DataChannel.registerObserver implementation does not allow to
         // unregister, so the observer is registered here and is never
         // unregistered
-        dataChannel.registerObserver(
-            new DataChannelObserver(webRTCModule, id, dcId, dataChannel));
+        DataChannelObserver observer
+            = new DataChannelObserver(
+                webRTCModule, id, dataChannels, handle, dataChannel);
+        dataChannels.put(handle, observer);
+        dataChannel.registerObserver(observer);
+        return observer;
     }
 
     @Override
     public void onRenegotiationNeeded() {
         WritableMap params = Arguments.createMap();
         params.putInt("id", id);
-        webRTCModule.sendEvent("peerConnectionOnRenegotiationNeeded", params);
+        webRTCModule.sendStateEvent("peerConnectionOnRenegotiationNeeded", params, id, null);
     }
 
     @Override
@@ -557,7 +1071,7 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         WritableMap params = Arguments.createMap();
         params.putInt("id", id);
         params.putString("signalingState", signalingStateString(signalingState));
-        webRTCModule.sendEvent("peerConnectionSignalingStateChanged", params);
+        webRTCModule.sendStateEvent("peerConnectionSignalingStateChanged", params, id, null);
     }
 
     @Override
@@ -0,0 +1,414 @@
+package com.oney.WebRTCModule;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Estimates the quality of the tracks sent and received by a PeerConnection
+ * from the samples of a {@link StatsSampler}: a MOS-like score between 1
+ * and 4.5 per RTP stream, averaged over the last <tt>window</tt> samples.
+ * The scores are bucketed into levels by ascending thresholds and an
+ * {@link #EVENT} event is emitted only when the level of a track changes.
+ * <p>
+ * Audio is scored with a simplified E-model (loss, jitter and round-trip
+ * time). Video starts from its resolution and frame rate and is penalized
+ * for loss, jitter, round-trip time and freezes.
+ */
+final class QualityEstimator implements StatsSampler.Listener {
+    /**
+     * The event emitted when the quality level of a track changes:
+     * <tt>{id, trackId, kind, direction, score, level, previousLevel,
+     * metrics}</tt>, <tt>direction</tt> being <tt>"send"</tt> or
+     * <tt>"receive"</tt>, <tt>previousLevel</tt> <tt>-1</tt> for the first
+     * level of a track and <tt>metrics</tt> the inputs of the last sample.
+     */
+    static final String EVENT = "peerConnectionQualityChanged";
+
+    static final double MIN_SCORE = 1;
+    static final double MAX_SCORE = 4.5;
+
+    private static final double[] DEFAULT_THRESHOLDS = { 2.5, 3.5 };
+    private static final int DEFAULT_WINDOW = 5;
+    private static final int MAX_WINDOW = 60;
+    private static final double DEFAULT_HYSTERESIS = 0.1;
+
+    /**
+     * The quality of an RTP stream: the counters of the previous sample and
+     * the scores of the last samples in a ring buffer.
+     */
+    private static final class Stream {
+        final String trackId;
+        final String kind;
+        final boolean send;
+        final double[] scores;
+        int head;
+        int size;
+        int level = -1;
+
+        double previousPackets = Double.NaN;
+        double previousLost = Double.NaN;
+        double previousFreezeCount = Double.NaN;
+
+        Stream(String trackId, String kind, boolean send, int window) {
+            this.trackId = trackId;
+            this.kind = kind;
+            this.send = send;
+            scores = new double[window];
+        }
+
+        /**
+         * Adds a score to the window and returns the average of the window.
+         */
+        double add(double score) {
+            scores[(head + size) % scores.length] = score;
+            if (size == scores.length) {
+                head = (head + 1) % scores.length;
+            } else {
+                size++;
+            }
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += scores[(head + i) % scores.length];
+            }
+            return sum / size;
+        }
+    }
+
+    private final WebRTCModule webRTCModule;
+    private final int peerConnectionId;
+    private final double[] thresholds;
+    private final int window;
+    private final double hysteresis;
+
+    /**
+     * The streams by the id of their <tt>inbound-rtp</tt> or
+     * <tt>outbound-rtp</tt> stats.
+     */
+    private final Map<String, Stream> streams = new HashMap<>();
+
+    /**
+     * @param config <tt>thresholds</tt> (ascending scores which separate
+     * the levels, defaults to <tt>[2.5, 3.5]</tt>, i.e. three levels),
+     * <tt>window</tt> (the number of samples the score is averaged over,
+     * defaults to 5) and <tt>hysteresis</tt> (how far past a threshold the
+     * score has to go for the level to change, defaults to 0.1)
+     */
+    QualityEstimator(
+            WebRTCModule webRTCModule,
+            int peerConnectionId,
+            ReadableMap config) {
+        this.webRTCModule = webRTCModule;
+        this.peerConnectionId = peerConnectionId;
+        if (config.hasKey("thresholds") && !config.isNull("thresholds")) {
+            ReadableArray array = config.getArray("thresholds");
+            thresholds = new double[array.size()];
+            for (int i = 0; i < thresholds.length; i++) {
+                thresholds[i] = array.getDouble(i);
+            }
+            Arrays.sort(thresholds);
+        } else {
+            thresholds = DEFAULT_THRESHOLDS;
+        }
+        window
+            = config.hasKey("window")
+                ? Math.max(1, Math.min(MAX_WINDOW, config.getInt("window")))
+                : DEFAULT_WINDOW;
+        hysteresis
+            = config.hasKey("hysteresis")
+                ? Math.max(0, config.getDouble("hysteresis"))
+                : DEFAULT_HYSTERESIS;
+    }
+
+    @Override
+    public void onStats(RTCStatsReport report) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        double connectionRtt = getConnectionRoundTripTime(statsMap);
+
+        for (RTCStats stats : statsMap.values()) {
+            String type = stats.getType();
+            boolean send = type.equals("outbound-rtp");
+            if (!send && !type.equals("inbound-rtp")) {
+                continue;
+            }
+            Object trackId
+                = PeerConnectionObserver.getTrackIdentifier(statsMap, stats);
+            Map<String, Object> members = stats.getMembers();
+            Object kind = members.get("kind");
+            if (kind == null) {
+                kind = members.get("mediaType");
+            }
+            if (trackId == null || kind == null) {
+                continue;
+            }
+
+            Stream stream = streams.get(stats.getId());
+            if (stream == null) {
+                stream
+                    = new Stream(
+                        trackId.toString(), kind.toString(), send, window);
+                streams.put(stats.getId(), stream);
+            }
+            sample(stream, statsMap, stats, connectionRtt);
+        }
+
+        for (Iterator<String> i = streams.keySet().iterator(); i.hasNext();) {
+            if (!statsMap.containsKey(i.next())) {
+                i.remove();
+            }
+        }
+    }
+
+    private void sample(
+            Stream stream,
+            Map<String, RTCStats> statsMap,
+            RTCStats stats,
+            double connectionRtt) {
+        Map<String, Object> members = stats.getMembers();
+
+        // The loss, the jitter and the round-trip time of a sent stream are
+        // reported by the remote end.
+        double packets;
+        double lost;
+        double jitter;
+        double rtt = connectionRtt;
+        if (stream.send) {
+            RTCStats remote = getRemoteInbound(statsMap, stats);
+            Map<String, Object> remoteMembers
+                = remote == null ? null : remote.getMembers();
+            packets = number(members, "packetsSent");
+            lost = number(remoteMembers, "packetsLost");
+            jitter = number(remoteMembers, "jitter");
+            double remoteRtt = number(remoteMembers, "roundTripTime");
+            if (!Double.isNaN(remoteRtt)) {
+                rtt = remoteRtt;
+            }
+        } else {
+            // Received packets do not include the lost ones.
+            packets
+                = number(members, "packetsReceived")
+                    + number(members, "packetsLost");
+            lost = number(members, "packetsLost");
+            jitter = number(members, "jitter");
+        }
+
+        double lossRate = 0;
+        double packetsDelta = packets - stream.previousPackets;
+        double lostDelta = lost - stream.previousLost;
+        if (packetsDelta > 0 && lostDelta > 0) {
+            lossRate = Math.min(1, lostDelta / packetsDelta);
+        }
+        stream.previousPackets = packets;
+        stream.previousLost = lost;
+
+        double freezeCount = number(members, "freezeCount");
+        double freezes = freezeCount - stream.previousFreezeCount;
+        stream.previousFreezeCount = freezeCount;
+        if (Double.isNaN(freezes) || freezes < 0) {
+            freezes = 0;
+        }
+
+        double framesPerSecond = number(members, "framesPerSecond");
+        double frameWidth = number(members, "frameWidth");
+        double frameHeight = number(members, "frameHeight");
+
+        double score;
+        if (stream.kind.equals("audio")) {
+            score = scoreAudio(lossRate, jitter, rtt);
+        } else {
+            score
+                = scoreVideo(
+                    lossRate, jitter, rtt,
+                    framesPerSecond, frameWidth * frameHeight, freezes);
+        }
+        score = stream.add(score);
+
+        int previousLevel = stream.level;
+        int level = levelOf(score);
+        if (previousLevel != -1 && level != previousLevel) {
+            // The score has to go past the threshold it crossed by the
+            // hysteresis so that it does not flap around it.
+            double threshold
+                = level > previousLevel
+                    ? thresholds[previousLevel]
+                    : thresholds[previousLevel - 1];
+            if (Math.abs(score - threshold) < hysteresis) {
+                level = previousLevel;
+            }
+        }
+        if (level == previousLevel) {
+            return;
+        }
+        stream.level = level;
+
+        WritableMap metrics = Arguments.createMap();
+        metrics.putDouble("packetLossRate", lossRate);
+        putNumber(metrics, "jitter", jitter);
+        putNumber(metrics, "roundTripTime", rtt);
+        putNumber(metrics, "framesPerSecond", framesPerSecond);
+        putNumber(metrics, "frameWidth", frameWidth);
+        putNumber(metrics, "frameHeight", frameHeight);
+        putNumber(metrics, "freezeCount", freezeCount);
+
+        WritableMap params = Arguments.createMap();
+        params.putInt("id", peerConnectionId);
+        params.putString("trackId", stream.trackId);
+        params.putString("kind", stream.kind);
+        params.putString("direction", stream.send ? "send" : "receive");
+        params.putDouble("score", score);
+        params.putInt("level", level);
+        params.putInt("previousLevel", previousLevel);
+        params.putMap("metrics", metrics);
+        webRTCModule.sendStateEvent(
+            EVENT,
+            params,
+            peerConnectionId,
+            stream.trackId + (stream.send ? "/send" : "/receive"));
+    }
+
+    /**
+     * Scores audio with a simplified E-model: the R factor of G.107 lowered
+     * by the effective latency and the loss, mapped to a MOS.
+     *
+     * @param jitter in seconds
+     * @param rtt in seconds
+     */
+    static double scoreAudio(double lossRate, double jitter, double rtt) {
+        double latencyMs
+            = (Double.isNaN(rtt) ? 0 : rtt * 1000 / 2)
+                + (Double.isNaN(jitter) ? 0 : jitter * 1000 * 2)
+                + 10;
+        double r = 93.2;
+        r -= latencyMs < 160 ? latencyMs / 40 : (latencyMs - 120) / 10;
+        r -= lossRate * 100 * 2.5;
+        if (r <= 0) {
+            return MIN_SCORE;
+        }
+        r = Math.min(100, r);
+        return clamp(1 + 0.035 * r + 7e-6 * r * (r - 60) * (100 - r));
+    }
+
+    /**
+     * Scores video from its resolution (from 160x120 to 1280x720 on a log
+     * scale) and frame rate (up to 30), less penalties for the loss, the
+     * jitter above 30 ms, the round-trip time above 300 ms and the freezes.
+     *
+     * @param pixels the number of pixels of a frame
+     * @param freezes the number of freezes since the previous sample
+     */
+    static double scoreVideo(
+            double lossRate,
+            double jitter,
+            double rtt,
+            double framesPerSecond,
+            double pixels,
+            double freezes) {
+        double resolution = 0.5;
+        if (pixels > 0) {
+            resolution
+                = Math.log(pixels / (160 * 120))
+                    / Math.log((1280 * 720) / (160 * 120));
+            resolution = Math.max(0, Math.min(1, resolution));
+        }
+        double frameRate = 0.5;
+        if (!Double.isNaN(framesPerSecond)) {
+            frameRate = Math.max(0, Math.min(1, framesPerSecond / 30));
+        }
+        double score
+            = MIN_SCORE
+                + (MAX_SCORE - MIN_SCORE) * (0.6 * resolution + 0.4 * frameRate);
+
+        score -= Math.min(2, lossRate * 100 * 0.15);
+        if (jitter > 0.03) {
+            score -= Math.min(0.5, (jitter - 0.03) * 10);
+        }
+        if (rtt > 0.3) {
+            score -= Math.min(1, (rtt - 0.3) / 0.4);
+        }
+        score -= Math.min(1.5, freezes * 0.5);
+        return clamp(score);
+    }
+
+    private int levelOf(double score) {
+        int level = 0;
+        while (level < thresholds.length && score >= thresholds[level]) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the current round-trip time, in seconds, of the selected
+     * candidate pair or <tt>NaN</tt>.
+     */
+    private static double getConnectionRoundTripTime(
+            Map<String, RTCStats> statsMap) {
+        for (RTCStats stats : statsMap.values()) {
+            if (stats.getType().equals("transport")) {
+                Object pairId
+                    = stats.getMembers().get("selectedCandidatePairId");
+                RTCStats pair = pairId == null ? null : statsMap.get(pairId);
+                if (pair != null) {
+                    return number(pair.getMembers(), "currentRoundTripTime");
+                }
+            }
+        }
+        for (RTCStats stats : statsMap.values()) {
+            if (stats.getType().equals("candidate-pair")
+                    && Boolean.TRUE.equals(
+                        stats.getMembers().get("nominated"))) {
+                return number(stats.getMembers(), "currentRoundTripTime");
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the <tt>remote-inbound-rtp</tt> stats of an
+     * <tt>outbound-rtp</tt> one or <tt>null</tt>.
+     */
+    private static RTCStats getRemoteInbound(
+            Map<String, RTCStats> statsMap,
+            RTCStats outbound) {
+        Object remoteId = outbound.getMembers().get("remoteId");
+        if (remoteId != null) {
+            return statsMap.get(remoteId);
+        }
+        for (RTCStats stats : statsMap.values()) {
+            if (stats.getType().equals("remote-inbound-rtp")
+                    && outbound.getId().equals(
+                        stats.getMembers().get("localId"))) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    private static double number(Map<String, Object> members, String name) {
+        Object value = members == null ? null : members.get(name);
+        return value instanceof Number
+            ? ((Number) value).doubleValue()
+            : Double.NaN;
+    }
+
+    private static void putNumber(WritableMap map, String name, double value) {
+        if (Double.isNaN(value)) {
+            map.putNull(name);
+        } else {
+            map.putDouble(name, value);
+        }
+    }
+
+    private static double clamp(double score) {
+        return Math.max(MIN_SCORE, Math.min(MAX_SCORE, score));
+    }
+}
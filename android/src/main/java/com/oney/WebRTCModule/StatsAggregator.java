@@ -0,0 +1,200 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gets the stats of a number of PeerConnections at once and delivers them
+ * to a single callback as one JSON <tt>String</tt>: <tt>{reports,
+ * timedOut}</tt>, <tt>reports</tt> mapping the id of each PeerConnection to
+ * its report (in the format of {@link PeerConnectionObserver#getStatsReport})
+ * and <tt>timedOut</tt> listing the ids of the PeerConnections whose stats
+ * did not arrive in time. The stats are requested from all PeerConnections
+ * concurrently, each on its own lane.
+ */
+final class StatsAggregator {
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * The time, in milliseconds, to wait for the stats of a PeerConnection
+     * unless the caller says otherwise.
+     */
+    static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private final Callback callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable timeoutRunnable = this::timeout;
+
+    /**
+     * The ids of the PeerConnections and, at the same index, whether their
+     * stats have arrived and their reports as JSON (<tt>null</tt> if getting
+     * them failed).
+     */
+    private final int[] ids;
+    private final boolean[] arrived;
+    private final String[] reports;
+    private int pending;
+    private boolean done;
+
+    private StatsAggregator(int[] ids, Callback callback) {
+        this.ids = ids;
+        this.callback = callback;
+        arrived = new boolean[ids.length];
+        reports = new String[ids.length];
+        pending = ids.length;
+    }
+
+    /**
+     * Requests the stats of the given PeerConnections.
+     *
+     * @param peerConnectionObservers the PeerConnections by id
+     * @param ids the ids of the PeerConnections whose stats to get or
+     * <tt>null</tt> for all of them; unknown ones are left out
+     * @param timeoutMs how long to wait for each PeerConnection
+     * @param filter the stats and members to write or <tt>null</tt> for all
+     */
+    static void getStats(
+            Map<Integer, PeerConnectionObserver> peerConnectionObservers,
+            @Nullable List<Integer> ids,
+            long timeoutMs,
+            @Nullable StatsFilter filter,
+            Callback callback) {
+        List<PeerConnectionObserver> pcos = new ArrayList<>();
+        List<Integer> pcoIds = new ArrayList<>();
+        if (ids == null) {
+            for (Map.Entry<Integer, PeerConnectionObserver> entry
+                    : peerConnectionObservers.entrySet()) {
+                pcos.add(entry.getValue());
+                pcoIds.add(entry.getKey());
+            }
+        } else {
+            for (Integer id : ids) {
+                PeerConnectionObserver pco = peerConnectionObservers.get(id);
+                if (pco == null) {
+                    Log.d(TAG, "getStatsReports() peerConnection is null: " + id);
+                } else {
+                    pcos.add(pco);
+                    pcoIds.add(id);
+                }
+            }
+        }
+
+        int[] idArray = new int[pcoIds.size()];
+        for (int i = 0; i < idArray.length; i++) {
+            idArray[i] = pcoIds.get(i);
+        }
+        StatsAggregator aggregator = new StatsAggregator(idArray, callback);
+        if (idArray.length == 0) {
+            aggregator.finish();
+            return;
+        }
+
+        aggregator.handler.postDelayed(
+            aggregator.timeoutRunnable,
+            Math.max(0, timeoutMs));
+        for (int i = 0; i < idArray.length; i++) {
+            final int index = i;
+            final PeerConnectionObserver pco = pcos.get(i);
+            ThreadUtils.runOnExecutor(
+                idArray[i],
+                ThreadUtils.PRIORITY_BULK,
+                "getStatsReports",
+                () -> {
+                    if (pco.getPeerConnection() == null) {
+                        aggregator.onReport(index, null);
+                    } else {
+                        pco.getStatsReport(
+                            filter,
+                            args -> aggregator.onReport(
+                                index,
+                                (Boolean) args[0] ? (String) args[1] : null));
+                    }
+                });
+        }
+    }
+
+    /**
+     * Records the report of a PeerConnection, or its absence, and delivers
+     * all of them if it was the last one awaited.
+     */
+    private void onReport(int index, @Nullable String report) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            arrived[index] = true;
+            reports[index] = report;
+            if (--pending != 0) {
+                return;
+            }
+            done = true;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        finish();
+    }
+
+    private void timeout() {
+        int pending;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            pending = this.pending;
+        }
+        Log.d(TAG, "getStatsReports() timed out with " + pending
+            + " of " + ids.length + " PeerConnections pending");
+        finish();
+    }
+
+    /**
+     * Joins the reports which have arrived into the JSON delivered to the
+     * callback. The reports are JSON already so they are copied as they are.
+     */
+    private void finish() {
+        StringBuilder s;
+        synchronized (this) {
+            int length = 32;
+            for (String report : reports) {
+                if (report != null) {
+                    length += report.length() + 16;
+                }
+            }
+            s = new StringBuilder(length);
+            s.append("{\"reports\":{");
+            boolean first = true;
+            for (int i = 0; i < ids.length; i++) {
+                if (reports[i] == null) {
+                    continue;
+                }
+                if (!first) {
+                    s.append(',');
+                }
+                first = false;
+                s.append('"').append(ids[i]).append("\":").append(reports[i]);
+            }
+            s.append("},\"timedOut\":[");
+            first = true;
+            for (int i = 0; i < ids.length; i++) {
+                if (arrived[i]) {
+                    continue;
+                }
+                if (!first) {
+                    s.append(',');
+                }
+                first = false;
+                s.append(ids[i]);
+            }
+            s.append("]}");
+        }
+        callback.invoke(true, s.toString());
+    }
+}
@@ -0,0 +1,264 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the samples of a {@link StatsSampler} into {@link #EVENT} events
+ * which carry only what changed since the previous sample, along with the
+ * bitrates and packet loss rates of the RTP streams computed from two
+ * consecutive samples.
+ */
+final class StatsDeltaEncoder implements StatsSampler.Listener {
+    /**
+     * The event which carries a delta: <tt>{id, timestamp, full, reports,
+     * removed}</tt>. <tt>reports</tt> maps the ids of the new and changed
+     * stats to their changed members (all of them for the new stats and in
+     * the first delta, for which <tt>full</tt> is <tt>true</tt>);
+     * <tt>removed</tt> lists the ids of the stats which are gone.
+     */
+    static final String EVENT = "peerConnectionStatsDelta";
+
+    private final WebRTCModule webRTCModule;
+    private final int peerConnectionId;
+
+    /**
+     * The stats and members to emit or <tt>null</tt> for all of them. The
+     * rates are computed regardless.
+     */
+    @Nullable
+    private final StatsFilter filter;
+
+    /**
+     * The stats of the previous sample which passed {@link #filter} by id.
+     */
+    private Map<String, RTCStats> previous = Collections.emptyMap();
+
+    /**
+     * The last <tt>bitrate</tt> and <tt>packetLossRate</tt> emitted for each
+     * RTP stream.
+     */
+    private final Map<String, double[]> rates = new HashMap<>();
+    private boolean full = true;
+
+    StatsDeltaEncoder(
+            WebRTCModule webRTCModule,
+            int peerConnectionId,
+            @Nullable StatsFilter filter) {
+        this.webRTCModule = webRTCModule;
+        this.peerConnectionId = peerConnectionId;
+        this.filter = filter;
+    }
+
+    @Override
+    public void onStats(RTCStatsReport report) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        // Only the stats which pass the filter are compared with the next
+        // sample, so that those filtered out are not reported as removed.
+        Map<String, RTCStats> current
+            = filter == null ? statsMap : new HashMap<String, RTCStats>();
+        WritableMap reports = Arguments.createMap();
+        boolean changed = false;
+        for (RTCStats stats : statsMap.values()) {
+            if (filter != null) {
+                if (!filter.acceptsType(stats.getType())
+                        || !filter.acceptsTrack(
+                            PeerConnectionObserver.getTrackIdentifier(
+                                statsMap, stats))) {
+                    continue;
+                }
+                current.put(stats.getId(), stats);
+            }
+            WritableMap delta = delta(stats, previous.get(stats.getId()));
+            if (delta != null) {
+                reports.putMap(stats.getId(), delta);
+                changed = true;
+            }
+        }
+        WritableArray removed = Arguments.createArray();
+        for (String id : previous.keySet()) {
+            if (!current.containsKey(id)) {
+                removed.pushString(id);
+                changed = true;
+            }
+        }
+        previous = current;
+        rates.keySet().retainAll(current.keySet());
+
+        if (changed || full) {
+            WritableMap params = Arguments.createMap();
+            params.putInt("id", peerConnectionId);
+            params.putDouble("timestamp", report.getTimestampUs() / 1000);
+            params.putBoolean("full", full);
+            params.putMap("reports", reports);
+            params.putArray("removed", removed);
+            webRTCModule.sendEvent(EVENT, params);
+            full = false;
+        }
+    }
+
+    /**
+     * Returns the members of the given stats which differ from the previous
+     * ones or <tt>null</tt> if none does.
+     */
+    private WritableMap delta(RTCStats stats, RTCStats previous) {
+        WritableMap delta = null;
+        Map<String, Object> members = stats.getMembers();
+        Map<String, Object> previousMembers
+            = previous == null ? null : previous.getMembers();
+        for (Map.Entry<String, Object> member : members.entrySet()) {
+            String name = member.getKey();
+            Object value = member.getValue();
+            if ((filter != null && !filter.acceptsValue(name))
+                    || (previousMembers != null
+                        && sameValue(value, previousMembers.get(name)))) {
+                continue;
+            }
+            if (delta == null) {
+                delta = Arguments.createMap();
+            }
+            putValue(delta, name, value);
+        }
+
+        if (previous != null) {
+            double seconds
+                = (stats.getTimestampUs() - previous.getTimestampUs()) / 1e6;
+            if (seconds > 0) {
+                String type = stats.getType();
+                if (type.equals("inbound-rtp")) {
+                    delta = putRates(
+                        delta, stats.getId(), previousMembers, members,
+                        seconds, "bytesReceived", "packetsReceived");
+                } else if (type.equals("outbound-rtp")) {
+                    delta = putRates(
+                        delta, stats.getId(), previousMembers, members,
+                        seconds, "bytesSent", null);
+                }
+            }
+        }
+
+        if (delta != null) {
+            if (previous == null) {
+                delta.putString("type", stats.getType());
+            }
+            delta.putDouble("timestamp", stats.getTimestampUs() / 1000);
+        }
+        return delta;
+    }
+
+    /**
+     * Adds the <tt>bitrate</tt> (in bits per second) and, if
+     * <tt>packetsName</tt> is given, the <tt>packetLossRate</tt> (between 0
+     * and 1) of an RTP stream over the time between two samples, unless
+     * they are the ones emitted last.
+     */
+    private WritableMap putRates(
+            WritableMap delta,
+            String id,
+            Map<String, Object> previousMembers,
+            Map<String, Object> members,
+            double seconds,
+            String bytesName,
+            String packetsName) {
+        double bytes = difference(members, previousMembers, bytesName);
+        double bitrate = bytes < 0 ? 0 : bytes * 8 / seconds;
+        double packetLossRate = 0;
+        if (packetsName != null) {
+            double packets = difference(members, previousMembers, packetsName);
+            double lost = difference(members, previousMembers, "packetsLost");
+            double expected = packets + lost;
+            packetLossRate = expected > 0 && lost > 0 ? lost / expected : 0;
+        }
+
+        double[] last = rates.get(id);
+        if (last == null) {
+            last = new double[] { -1, -1 };
+            rates.put(id, last);
+        }
+        if (bitrate != last[0] || packetLossRate != last[1]) {
+            if (delta == null) {
+                delta = Arguments.createMap();
+            }
+            if (bitrate != last[0]) {
+                delta.putDouble("bitrate", bitrate);
+            }
+            if (packetsName != null && packetLossRate != last[1]) {
+                delta.putDouble("packetLossRate", packetLossRate);
+            }
+            last[0] = bitrate;
+            last[1] = packetLossRate;
+        }
+        return delta;
+    }
+
+    private static boolean sameValue(Object value, Object previousValue) {
+        if (value instanceof Object[] && previousValue instanceof Object[]) {
+            return Arrays.deepEquals((Object[]) value, (Object[]) previousValue);
+        }
+        return value == null ? previousValue == null : value.equals(previousValue);
+    }
+
+    private static double difference(
+            Map<String, Object> members,
+            Map<String, Object> previousMembers,
+            String name) {
+        Object value = members.get(name);
+        Object previousValue = previousMembers.get(name);
+        if (value instanceof Number && previousValue instanceof Number) {
+            return ((Number) value).doubleValue()
+                - ((Number) previousValue).doubleValue();
+        }
+        return 0;
+    }
+
+    /**
+     * Puts a member of an <tt>RTCStats</tt> into a map, keeping its type:
+     * numbers, booleans, strings and arrays or maps of them.
+     */
+    static void putValue(WritableMap map, String name, Object value) {
+        if (value == null) {
+            map.putNull(name);
+        } else if (value instanceof Boolean) {
+            map.putBoolean(name, (Boolean) value);
+        } else if (value instanceof Number) {
+            map.putDouble(name, ((Number) value).doubleValue());
+        } else if (value instanceof Object[]) {
+            map.putArray(name, toArray((Object[]) value));
+        } else if (value instanceof Map) {
+            WritableMap child = Arguments.createMap();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                putValue(child, String.valueOf(entry.getKey()), entry.getValue());
+            }
+            map.putMap(name, child);
+        } else {
+            map.putString(name, value.toString());
+        }
+    }
+
+    private static WritableArray toArray(Object[] values) {
+        WritableArray array = Arguments.createArray();
+        for (Object value : values) {
+            if (value == null) {
+                array.pushNull();
+            } else if (value instanceof Boolean) {
+                array.pushBoolean((Boolean) value);
+            } else if (value instanceof Number) {
+                array.pushDouble(((Number) value).doubleValue());
+            } else {
+                array.pushString(value.toString());
+            }
+        }
+        return array;
+    }
+}
@@ -0,0 +1,98 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which stats a caller wants, applied while the stats are serialized so
+ * that the unwanted ones are never turned into strings nor sent over the
+ * bridge. Each of the criteria is optional and an absent one accepts
+ * everything.
+ */
+final class StatsFilter {
+    /**
+     * The report types, e.g. <tt>"ssrc"</tt> and
+     * <tt>"googCandidatePair"</tt> for the legacy stats or
+     * <tt>"inbound-rtp"</tt> and <tt>"candidate-pair"</tt> for the standard
+     * ones.
+     */
+    @Nullable
+    private final Set<String> types;
+
+    /**
+     * The names of the values of the reports. The id, type and timestamp of
+     * a report are always written.
+     */
+    @Nullable
+    private final Set<String> values;
+
+    /**
+     * The ids of the tracks whose reports are wanted. The reports which do
+     * not belong to a track are not affected.
+     */
+    @Nullable
+    private final Set<String> trackIds;
+
+    private StatsFilter(
+            @Nullable Set<String> types,
+            @Nullable Set<String> values,
+            @Nullable Set<String> trackIds) {
+        this.types = types;
+        this.values = values;
+        this.trackIds = trackIds;
+    }
+
+    /**
+     * Parses a filter spec: <tt>{types, values, trackIds}</tt>, arrays of
+     * strings.
+     *
+     * @return the filter or <tt>null</tt> if the spec accepts everything
+     */
+    @Nullable
+    static StatsFilter fromMap(@Nullable ReadableMap spec) {
+        if (spec == null) {
+            return null;
+        }
+        Set<String> types = toSet(spec, "types");
+        Set<String> values = toSet(spec, "values");
+        Set<String> trackIds = toSet(spec, "trackIds");
+        if (types == null && values == null && trackIds == null) {
+            return null;
+        }
+        return new StatsFilter(types, values, trackIds);
+    }
+
+    @Nullable
+    private static Set<String> toSet(ReadableMap spec, String name) {
+        if (!spec.hasKey(name) || spec.isNull(name)) {
+            return null;
+        }
+        ReadableArray array = spec.getArray(name);
+        Set<String> set = new HashSet<>();
+        for (int i = 0, size = array.size(); i < size; i++) {
+            set.add(array.getString(i));
+        }
+        return set;
+    }
+
+    boolean acceptsType(String type) {
+        return types == null || types.contains(type);
+    }
+
+    boolean acceptsValue(String name) {
+        return values == null || values.contains(name);
+    }
+
+    /**
+     * @param trackId the id of the track a report belongs to or
+     * <tt>null</tt> if it does not belong to one
+     */
+    boolean acceptsTrack(@Nullable Object trackId) {
+        return trackIds == null || trackId == null || trackIds.contains(trackId);
+    }
+}
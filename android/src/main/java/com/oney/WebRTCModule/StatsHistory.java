@@ -0,0 +1,369 @@
+package com.oney.WebRTCModule;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps the recent history of selected numeric stats of a PeerConnection in
+ * a ring buffer of primitive arrays, fed by a {@link StatsSampler}. Its
+ * memory is allocated once: <tt>capacity</tt> timestamps and
+ * <tt>capacity</tt> values per series.
+ */
+final class StatsHistory implements StatsSampler.Listener {
+    static final int DEFAULT_CAPACITY = 600;
+    static final int MAX_CAPACITY = 36000;
+    static final int MAX_SERIES = 64;
+
+    private static final int AGGREGATE_SUM = 0;
+    private static final int AGGREGATE_MIN = 1;
+    private static final int AGGREGATE_MAX = 2;
+    private static final int AGGREGATE_AVG = 3;
+
+    /**
+     * A series: the member of the stats of a type, optionally limited to a
+     * track, aggregated over all the stats which have it and optionally
+     * turned into a per-second rate.
+     */
+    private static final class Series {
+        final String name;
+        final String type;
+        final String member;
+        @Nullable
+        final String trackId;
+        final int aggregate;
+        final boolean rate;
+
+        /**
+         * The aggregated value and the time of the previous sample of a
+         * rate.
+         */
+        double previousValue = Double.NaN;
+        long previousTime;
+
+        Series(ReadableMap spec) {
+            type = spec.getString("type");
+            member = spec.getString("member");
+            name
+                = spec.hasKey("name")
+                    ? spec.getString("name")
+                    : type + "." + member;
+            trackId
+                = spec.hasKey("trackId") ? spec.getString("trackId") : null;
+            rate = spec.hasKey("rate") && spec.getBoolean("rate");
+            String aggregate
+                = spec.hasKey("aggregate") ? spec.getString("aggregate") : "sum";
+            switch (aggregate) {
+            case "min":
+                this.aggregate = AGGREGATE_MIN;
+                break;
+            case "max":
+                this.aggregate = AGGREGATE_MAX;
+                break;
+            case "avg":
+                this.aggregate = AGGREGATE_AVG;
+                break;
+            default:
+                this.aggregate = AGGREGATE_SUM;
+                break;
+            }
+        }
+    }
+
+    private final Series[] series;
+    private final long[] timestamps;
+    private final double[][] values;
+    private int head;
+    private int size;
+
+    /**
+     * @param config <tt>capacity</tt> (the number of samples kept, defaults
+     * to {@link #DEFAULT_CAPACITY}) and <tt>series</tt>: <tt>{type, member,
+     * name, trackId, aggregate, rate}</tt> maps, <tt>aggregate</tt> being
+     * one of <tt>"sum"</tt> (the default), <tt>"min"</tt>, <tt>"max"</tt>
+     * and <tt>"avg"</tt> and <tt>rate</tt> whether to keep the per-second
+     * rate of a counter rather than its value
+     */
+    StatsHistory(ReadableMap config) {
+        int capacity
+            = config.hasKey("capacity")
+                ? config.getInt("capacity")
+                : DEFAULT_CAPACITY;
+        capacity = Math.max(1, Math.min(MAX_CAPACITY, capacity));
+        ReadableArray specs = config.getArray("series");
+        int count = Math.min(MAX_SERIES, specs.size());
+        series = new Series[count];
+        for (int i = 0; i < count; i++) {
+            series[i] = new Series(specs.getMap(i));
+        }
+        timestamps = new long[capacity];
+        values = new double[count][capacity];
+    }
+
+    @Override
+    public void onStats(RTCStatsReport report) {
+        long now = System.currentTimeMillis();
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        synchronized (this) {
+            int index = (head + size) % timestamps.length;
+            if (size == timestamps.length) {
+                head = (head + 1) % timestamps.length;
+            } else {
+                size++;
+            }
+            timestamps[index] = now;
+            for (int i = 0; i < series.length; i++) {
+                values[i][index] = sample(series[i], statsMap, now);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a series in a sample or <tt>NaN</tt> if none of
+     * the stats has it.
+     */
+    private static double sample(
+            Series s,
+            Map<String, RTCStats> statsMap,
+            long now) {
+        double value = Double.NaN;
+        int count = 0;
+        for (RTCStats stats : statsMap.values()) {
+            if (!stats.getType().equals(s.type)) {
+                continue;
+            }
+            Object member = stats.getMembers().get(s.member);
+            if (!(member instanceof Number)) {
+                continue;
+            }
+            if (s.trackId != null
+                    && !s.trackId.equals(
+                        PeerConnectionObserver.getTrackIdentifier(
+                            statsMap, stats))) {
+                continue;
+            }
+            double v = ((Number) member).doubleValue();
+            if (count++ == 0) {
+                value = v;
+            } else if (s.aggregate == AGGREGATE_MIN) {
+                value = Math.min(value, v);
+            } else if (s.aggregate == AGGREGATE_MAX) {
+                value = Math.max(value, v);
+            } else {
+                value += v;
+            }
+        }
+        if (s.aggregate == AGGREGATE_AVG && count != 0) {
+            value /= count;
+        }
+
+        if (s.rate) {
+            double previousValue = s.previousValue;
+            long previousTime = s.previousTime;
+            s.previousValue = value;
+            s.previousTime = now;
+            if (Double.isNaN(value)
+                    || Double.isNaN(previousValue)
+                    || now <= previousTime) {
+                return Double.NaN;
+            }
+            // Counters restart when the stats they are summed over change.
+            return Math.max(0, value - previousValue) * 1000
+                / (now - previousTime);
+        }
+        return value;
+    }
+
+    /**
+     * Downsamples the samples taken in a time range into buckets of equal
+     * duration.
+     *
+     * @param query <tt>from</tt> and <tt>to</tt> (milliseconds since the
+     * epoch, default to the whole history) and <tt>buckets</tt> (defaults
+     * to 60)
+     * @return <tt>{from, to, bucketMs, timestamps, series}</tt>,
+     * <tt>timestamps</tt> being the start of each bucket and <tt>series</tt>
+     * mapping the name of each series to <tt>{min, max, avg}</tt> arrays
+     * with one element per bucket (<tt>null</tt> for an empty bucket)
+     */
+    synchronized WritableMap query(@Nullable ReadableMap query) {
+        long first = size == 0 ? 0 : timestamps[head];
+        long last
+            = size == 0 ? 0 : timestamps[(head + size - 1) % timestamps.length];
+        long from
+            = query != null && query.hasKey("from")
+                ? (long) query.getDouble("from")
+                : first;
+        long to
+            = query != null && query.hasKey("to")
+                ? (long) query.getDouble("to")
+                : last + 1;
+        int buckets
+            = query != null && query.hasKey("buckets")
+                ? Math.max(1, Math.min(timestamps.length, query.getInt("buckets")))
+                : 60;
+        long bucketMs = Math.max(1, (to - from + buckets - 1) / buckets);
+
+        double[] min = new double[buckets];
+        double[] max = new double[buckets];
+        double[] sum = new double[buckets];
+        int[] count = new int[buckets];
+
+        WritableMap seriesMap = Arguments.createMap();
+        for (int i = 0; i < series.length; i++) {
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            Arrays.fill(sum, 0);
+            Arrays.fill(count, 0);
+            double[] v = values[i];
+            for (int j = 0; j < size; j++) {
+                int index = (head + j) % timestamps.length;
+                long t = timestamps[index];
+                double value = v[index];
+                if (t < from || t >= to || Double.isNaN(value)) {
+                    continue;
+                }
+                int bucket = (int) ((t - from) / bucketMs);
+                if (bucket >= buckets) {
+                    continue;
+                }
+                min[bucket] = Math.min(min[bucket], value);
+                max[bucket] = Math.max(max[bucket], value);
+                sum[bucket] += value;
+                count[bucket]++;
+            }
+
+            WritableArray minArray = Arguments.createArray();
+            WritableArray maxArray = Arguments.createArray();
+            WritableArray avgArray = Arguments.createArray();
+            for (int b = 0; b < buckets; b++) {
+                if (count[b] == 0) {
+                    minArray.pushNull();
+                    maxArray.pushNull();
+                    avgArray.pushNull();
+                } else {
+                    minArray.pushDouble(min[b]);
+                    maxArray.pushDouble(max[b]);
+                    avgArray.pushDouble(sum[b] / count[b]);
+                }
+            }
+            WritableMap seriesResult = Arguments.createMap();
+            seriesResult.putArray("min", minArray);
+            seriesResult.putArray("max", maxArray);
+            seriesResult.putArray("avg", avgArray);
+            seriesMap.putMap(series[i].name, seriesResult);
+        }
+
+        WritableArray bucketTimestamps = Arguments.createArray();
+        for (int b = 0; b < buckets; b++) {
+            bucketTimestamps.pushDouble(from + b * bucketMs);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putDouble("from", from);
+        result.putDouble("to", to);
+        result.putDouble("bucketMs", bucketMs);
+        result.putArray("timestamps", bucketTimestamps);
+        result.putMap("series", seriesMap);
+        return result;
+    }
+
+    /**
+     * The samples of a {@link StatsHistory} copied out of its ring buffer, so
+     * that they can be written to a file without holding up sampling or the
+     * lane of the PeerConnection.
+     */
+    static final class Snapshot {
+        private final String[] names;
+        private final long[] timestamps;
+        private final double[][] values;
+
+        private Snapshot(String[] names, long[] timestamps, double[][] values) {
+            this.names = names;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+
+        /**
+         * Writes the samples to a CSV file: a header line with
+         * <tt>timestamp</tt> and the names of the series, then one line per
+         * sample, missing values being left empty.
+         *
+         * @param path a file path, optionally prefixed with <tt>file://</tt>
+         * @return <tt>null</tt> on success or an error message
+         */
+        @Nullable
+        String write(String path) {
+            if (path.startsWith("file://")) {
+                path = path.substring(7);
+            }
+            try (Writer writer
+                    = new BufferedWriter(
+                        new OutputStreamWriter(
+                            new FileOutputStream(path), "UTF-8"))) {
+                writer.write("timestamp");
+                for (String name : names) {
+                    writer.write(',');
+                    writer.write(csvField(name));
+                }
+                writer.write('\n');
+                for (int j = 0; j < timestamps.length; j++) {
+                    writer.write(Long.toString(timestamps[j]));
+                    for (int i = 0; i < names.length; i++) {
+                        writer.write(',');
+                        if (!Double.isNaN(values[i][j])) {
+                            writer.write(Double.toString(values[i][j]));
+                        }
+                    }
+                    writer.write('\n');
+                }
+                return null;
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        }
+    }
+
+    /**
+     * Copies all the samples, oldest first, for {@link Snapshot#write}.
+     */
+    synchronized Snapshot snapshot() {
+        String[] names = new String[series.length];
+        long[] timestamps = new long[size];
+        double[][] values = new double[series.length][size];
+        for (int i = 0; i < series.length; i++) {
+            names[i] = series[i].name;
+        }
+        for (int j = 0; j < size; j++) {
+            int index = (head + j) % this.timestamps.length;
+            timestamps[j] = this.timestamps[index];
+            for (int i = 0; i < series.length; i++) {
+                values[i][j] = this.values[i][index];
+            }
+        }
+        return new Snapshot(names, timestamps, values);
+    }
+
+    private static String csvField(String field) {
+        if (field.indexOf(',') == -1
+                && field.indexOf('"') == -1
+                && field.indexOf('\n') == -1) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,322 @@
+package com.oney.WebRTCModule;
+
+import java.util.Map;
+
+/**
+ * A minimal streaming JSON writer for stats. Values are appended to a
+ * <tt>char</tt> buffer as they come, so no intermediate maps are built, and
+ * keep their types: numbers are written as numbers, arrays as arrays.
+ * Strings are escaped as JSON requires. A writer is meant to be reused:
+ * {@link #finish()} returns the JSON and keeps the buffer for the next
+ * document unless it has grown beyond {@link #MAX_RETAINED_CAPACITY}.
+ */
+final class StatsJsonWriter {
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    /**
+     * The largest buffer, in chars, kept between two documents.
+     */
+    static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    /**
+     * Whether each ASCII character needs escaping: the control characters,
+     * <tt>"</tt> and <tt>\</tt>.
+     */
+    private static final boolean[] ESCAPES = new boolean[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = true;
+        }
+        ESCAPES['"'] = true;
+        ESCAPES['\\'] = true;
+    }
+
+    /**
+     * The JSON written so far. Strings are copied into it in bulk and then
+     * scanned there for characters which need escaping, which is cheaper
+     * than going through a <tt>StringBuilder</tt> char by char.
+     */
+    private char[] buf = new char[INITIAL_CAPACITY];
+    private int length;
+
+    /**
+     * Formats the numbers, which are then copied into {@link #buf}.
+     */
+    private final StringBuilder number = new StringBuilder(32);
+
+    /**
+     * Whether a value has been written at each nesting level, i.e. whether
+     * the next one needs a comma.
+     */
+    private boolean[] hasValue = new boolean[8];
+    private int depth;
+
+    /**
+     * Returns the JSON written so far and prepares this writer for the next
+     * document.
+     */
+    String finish() {
+        String json = new String(buf, 0, length);
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new char[INITIAL_CAPACITY];
+        }
+        length = 0;
+        depth = 0;
+        hasValue[0] = false;
+        return json;
+    }
+
+    StatsJsonWriter beginObject() {
+        beforeValue();
+        append('{');
+        push();
+        return this;
+    }
+
+    StatsJsonWriter endObject() {
+        depth--;
+        append('}');
+        return this;
+    }
+
+    StatsJsonWriter beginArray() {
+        beforeValue();
+        append('[');
+        push();
+        return this;
+    }
+
+    StatsJsonWriter endArray() {
+        depth--;
+        append(']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of the current object. It is
+     * followed by exactly one value.
+     */
+    StatsJsonWriter name(String name) {
+        beforeValue();
+        string(name);
+        append(':');
+        // The value which follows belongs to the name.
+        hasValue[depth] = false;
+        return this;
+    }
+
+    /**
+     * Writes a name which needs no escaping, such as the constant keys of the
+     * stats, as it is.
+     */
+    StatsJsonWriter literalName(String name) {
+        beforeValue();
+        append('"');
+        append(name);
+        append('"');
+        append(':');
+        hasValue[depth] = false;
+        return this;
+    }
+
+    StatsJsonWriter value(String value) {
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    StatsJsonWriter value(boolean value) {
+        beforeValue();
+        append(value ? "true" : "false");
+        return this;
+    }
+
+    StatsJsonWriter value(long value) {
+        beforeValue();
+        number.setLength(0);
+        number.append(value);
+        appendNumber();
+        return this;
+    }
+
+    StatsJsonWriter value(double value) {
+        if (!Double.isNaN(value)
+                && !Double.isInfinite(value)
+                && value == (long) value) {
+            return value((long) value);
+        }
+        return valueAsDouble(value);
+    }
+
+    /**
+     * Writes a number the way <tt>StringBuilder.append(double)</tt> does,
+     * integral or not (e.g. <tt>1.602000000123E12</tt>), which is the format
+     * of the timestamps of the legacy stats.
+     */
+    StatsJsonWriter valueAsDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        beforeValue();
+        number.setLength(0);
+        number.append(value);
+        appendNumber();
+        return this;
+    }
+
+    StatsJsonWriter nullValue() {
+        beforeValue();
+        append("null");
+        return this;
+    }
+
+    /**
+     * Writes a member of an <tt>RTCStats</tt>: a number, a boolean, a string
+     * or an array or a map of them.
+     */
+    StatsJsonWriter value(Object value) {
+        if (value == null) {
+            return nullValue();
+        } else if (value instanceof Boolean) {
+            return value((boolean) (Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            return value(((Number) value).doubleValue());
+        } else if (value instanceof Integer || value instanceof Long) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            // BigInteger (uint64 members).
+            beforeValue();
+            append(value.toString());
+            return this;
+        } else if (value instanceof Object[]) {
+            beginArray();
+            for (Object element : (Object[]) value) {
+                value(element);
+            }
+            return endArray();
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return endObject();
+        }
+        return value(value.toString());
+    }
+
+    private void push() {
+        if (++depth == hasValue.length) {
+            boolean[] newHasValue = new boolean[depth * 2];
+            System.arraycopy(hasValue, 0, newHasValue, 0, depth);
+            hasValue = newHasValue;
+        }
+        hasValue[depth] = false;
+    }
+
+    private void beforeValue() {
+        if (hasValue[depth]) {
+            append(',');
+        }
+        hasValue[depth] = true;
+    }
+
+    /**
+     * Makes room for the given number of chars more.
+     */
+    private void reserve(int count) {
+        int required = length + count;
+        if (required > buf.length) {
+            char[] newBuf = new char[Math.max(required, buf.length * 2)];
+            System.arraycopy(buf, 0, newBuf, 0, length);
+            buf = newBuf;
+        }
+    }
+
+    private void append(char c) {
+        if (length == buf.length) {
+            reserve(1);
+        }
+        buf[length++] = c;
+    }
+
+    private void append(String value) {
+        int count = value.length();
+        reserve(count);
+        value.getChars(0, count, buf, length);
+        length += count;
+    }
+
+    private void appendNumber() {
+        int count = number.length();
+        reserve(count);
+        number.getChars(0, count, buf, length);
+        length += count;
+    }
+
+    private void string(String value) {
+        int count = value.length();
+        // Copies the string along with its quotes and leaves it there unless
+        // it turns out to need escaping, which most strings do not.
+        reserve(count + 2);
+        char[] buf = this.buf;
+        int start = length;
+        buf[start] = '"';
+        value.getChars(0, count, buf, start + 1);
+        int end = start + 1 + count;
+        for (int i = start + 1; i < end; i++) {
+            if (needsEscape(buf[i])) {
+                length = i;
+                escape(value, i - start - 1);
+                return;
+            }
+        }
+        buf[end] = '"';
+        length = end + 1;
+    }
+
+    /**
+     * Writes the rest of a string, starting with the first character which
+     * needs escaping, and its closing quote.
+     */
+    private void escape(String value, int i) {
+        int count = value.length();
+        for (; i < count; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                append("\\\"");
+                break;
+            case '\\':
+                append("\\\\");
+                break;
+            case '\n':
+                append("\\n");
+                break;
+            case '\r':
+                append("\\r");
+                break;
+            case '\t':
+                append("\\t");
+                break;
+            default:
+                if (needsEscape(c)) {
+                    append("\\u");
+                    String hex = Integer.toHexString(c);
+                    for (int j = hex.length(); j < 4; j++) {
+                        append('0');
+                    }
+                    append(hex);
+                } else {
+                    append(c);
+                }
+            }
+        }
+        append('"');
+    }
+
+    private static boolean needsEscape(char c) {
+        // U+2028 and U+2029 are the only ones outside of ASCII.
+        return c < ESCAPES.length ? ESCAPES[c] : (c | 1) == 0x2029;
+    }
+}
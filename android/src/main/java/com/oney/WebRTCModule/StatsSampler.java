@@ -0,0 +1,163 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStatsReport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the stats of a PeerConnection periodically on behalf of a number
+ * of consumers, each of which asks for its own interval. A single
+ * <tt>getStats</tt> call serves all the consumers which are due and no new
+ * one is made while the previous one has not completed.
+ */
+final class StatsSampler {
+    /**
+     * The shortest interval, in milliseconds, at which stats are sampled.
+     */
+    static final long MIN_INTERVAL_MS = 100;
+
+    interface Listener {
+        /**
+         * Invoked on the signaling thread with a fresh report.
+         */
+        void onStats(RTCStatsReport report);
+    }
+
+    private static final class Entry {
+        final Listener listener;
+        final long intervalMs;
+        long sampledAt;
+
+        Entry(Listener listener, long intervalMs) {
+            this.listener = listener;
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    private final int peerConnectionId;
+    private final PeerConnection peerConnection;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable tickRunnable = this::tick;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long tickIntervalMs;
+    private boolean sampling;
+    private boolean stopped;
+
+    StatsSampler(int peerConnectionId, PeerConnection peerConnection) {
+        this.peerConnectionId = peerConnectionId;
+        this.peerConnection = peerConnection;
+    }
+
+    /**
+     * Starts delivering samples to the given listener every
+     * <tt>intervalMs</tt> milliseconds, the first one right away. Adding a
+     * listener which has been added already changes its interval.
+     */
+    synchronized void addListener(Listener listener, long intervalMs) {
+        if (stopped) {
+            return;
+        }
+        removeEntry(listener);
+        entries.add(new Entry(listener, Math.max(MIN_INTERVAL_MS, intervalMs)));
+        reschedule();
+    }
+
+    synchronized void removeListener(Listener listener) {
+        if (removeEntry(listener)) {
+            reschedule();
+        }
+    }
+
+    /**
+     * Stops sampling for good. Invoked when the PeerConnection is closed, on
+     * its lane, so no sample is taken afterwards.
+     */
+    synchronized void stop() {
+        stopped = true;
+        entries.clear();
+        handler.removeCallbacks(tickRunnable);
+    }
+
+    private boolean removeEntry(Listener listener) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).listener == listener) {
+                entries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ticks at the shortest interval of the listeners, starting now.
+     */
+    private void reschedule() {
+        handler.removeCallbacks(tickRunnable);
+        tickIntervalMs = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            tickIntervalMs = Math.min(tickIntervalMs, entry.intervalMs);
+        }
+        if (!entries.isEmpty()) {
+            handler.post(tickRunnable);
+        }
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (entries.isEmpty()) {
+                return;
+            }
+            handler.postDelayed(tickRunnable, tickIntervalMs);
+            if (sampling) {
+                // The previous getStats is still running.
+                return;
+            }
+            sampling = true;
+        }
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_BULK,
+            "statsSample",
+            this::sample);
+    }
+
+    private void sample() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+        peerConnection.getStats(this::onStats);
+    }
+
+    private void onStats(RTCStatsReport report) {
+        long now = SystemClock.elapsedRealtime();
+        List<Listener> due = new ArrayList<>();
+        synchronized (this) {
+            sampling = false;
+            if (stopped) {
+                return;
+            }
+            // A listener is due if its next sample is closer to now than to
+            // the next tick.
+            long slack = tickIntervalMs / 2;
+            for (Entry entry : entries) {
+                if (entry.sampledAt == 0
+                        || now - entry.sampledAt >= entry.intervalMs - slack) {
+                    entry.sampledAt = now;
+                    due.add(entry.listener);
+                }
+            }
+        }
+        for (Listener listener : due) {
+            listener.onStats(report);
+        }
+    }
+}
@@ -1,22 +1,465 @@
 package com.oney.WebRTCModule;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 
 final class ThreadUtils {
     /**
-     * Thread which will be used to call all WebRTC PeerConnection APIs. They
-     * they don't run on the calling thread anyway, we are deferring the calls
-     * to this thread to avoid (potentially) blocking the calling thread.
+     * The lane on which factory-wide work (initialization, getUserMedia,
+     * local MediaStream management) is executed. PeerConnection lanes are
+     * keyed by the (non-negative) id of their PeerConnectionObserver.
      */
-    private static final ExecutorService executor
-        = Executors.newSingleThreadExecutor();
+    static final int FACTORY_LANE = -1;
 
     /**
-     * Runs the given {@link Runnable} on the executor.
+     * Signaling operations: anything which changes the negotiation state of a
+     * PeerConnection (descriptions, ICE candidates, tracks, data channel
+     * creation). They keep their relative order and run before all other work
+     * queued on their lane.
+     */
+    static final int PRIORITY_CRITICAL = 0;
+
+    /**
+     * Real-time data sends and control of local media.
+     */
+    static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Stats collection and capture device work.
+     */
+    static final int PRIORITY_BULK = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    /**
+     * The number of threads which will be used to call the WebRTC
+     * PeerConnection APIs. They don't run on the calling thread anyway, we are
+     * deferring the calls to these threads to avoid (potentially) blocking the
+     * calling thread.
+     */
+    private static final int POOL_SIZE
+        = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Guards the state of all lanes, gates and the ready queues. Critical
+     * sections only move references around; tasks run outside of it.
+     */
+    private static final Object lock = new Object();
+
+    /**
+     * The lanes which have work to do and are not running, queued by the
+     * priority of their most urgent task. Each lane is in at most one of them
+     * and at most one thread runs a lane at any time, so the tasks of a lane
+     * are executed one after the other while distinct lanes make progress in
+     * parallel.
+     */
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<Lane>[] ready
+        = new ArrayDeque[PRIORITY_COUNT];
+
+    private static final Map<Integer, Lane> lanes = new HashMap<>();
+
+    /**
+     * The submission order of tasks across all lanes.
+     */
+    private static long nextSeq;
+
+    static {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            ready[i] = new ArrayDeque<>();
+        }
+        for (int i = 0; i < POOL_SIZE; i++) {
+            Thread thread = new Thread(ThreadUtils::work, "WebRTCModule-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the lane with the given id. Tasks
+     * submitted to the same lane with the same priority are executed in
+     * submission order; tasks with a more urgent priority are executed first.
+     * @param laneId the id of the PeerConnection the task operates on or
+     * {@link #FACTORY_LANE}
+     * @param priority one of the <tt>PRIORITY_*</tt> constants
+     * @param method the name of the bridge method the task belongs to, under
+     * which its timings are recorded in {@link ExecutorStats}
+     * @param runnable
+     */
+    public static void runOnExecutor(
+            int laneId,
+            int priority,
+            String method,
+            Runnable runnable) {
+        ExecutorStats.Method m = ExecutorStats.get(method);
+        synchronized (lock) {
+            getLane(laneId).execute(priority, m, runnable);
+        }
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the lane with the given id, but only
+     * after all the tasks submitted to the factory lane so far have completed.
+     * Meant for PeerConnection work which depends on factory-wide state such
+     * as the PeerConnectionFactory itself or local MediaStreams and tracks.
+     * Later tasks of the same lane are held (without blocking a pool thread)
+     * until then, so none of them overtakes the given one.
+     * @param laneId the id of the PeerConnection the task operates on
+     * @param priority one of the <tt>PRIORITY_*</tt> constants
+     * @param method the name of the bridge method the task belongs to
+     * @param runnable
+     */
+    public static void runOnExecutorAfterFactory(
+            int laneId,
+            int priority,
+            String method,
+            Runnable runnable) {
+        ExecutorStats.Method m = ExecutorStats.get(method);
+        synchronized (lock) {
+            Gate gate = new Gate(1, runnable);
+            getLane(laneId).execute(priority, m, gate);
+            // The least urgent priority guarantees that everything queued on
+            // the factory lane so far has run when the gate opens.
+            getLane(FACTORY_LANE).execute(PRIORITY_BULK, null, gate::countDown);
+        }
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the lane with the given id after all
+     * the tasks submitted to that lane so far have completed, whatever their
+     * priority. Later tasks of the lane are held until then. Meant for work
+     * which ends what the queued tasks operate on, such as closing a
+     * PeerConnection.
+     * @param laneId the id of the lane
+     * @param priority one of the <tt>PRIORITY_*</tt> constants
+     * @param method the name of the bridge method the task belongs to
+     * @param runnable
+     */
+    public static void runOnExecutorAfterQueued(
+            int laneId,
+            int priority,
+            String method,
+            Runnable runnable) {
+        ExecutorStats.Method m = ExecutorStats.get(method);
+        synchronized (lock) {
+            Lane lane = getLane(laneId);
+            Gate gate = new Gate(1, runnable);
+            // Submitted before the gate, so it is not held by it, and with
+            // the least urgent priority, so it runs after every task
+            // submitted so far.
+            lane.execute(PRIORITY_BULK, null, gate::countDown);
+            lane.execute(priority, m, gate);
+        }
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the factory lane after all the tasks
+     * submitted to any PeerConnection lane so far have completed. Meant for
+     * factory-wide work which touches every PeerConnection.
+     * @param priority one of the <tt>PRIORITY_*</tt> constants
+     * @param method the name of the bridge method the task belongs to
      * @param runnable
      */
-    public static void runOnExecutor(Runnable runnable) {
-        executor.execute(runnable);
+    public static void runOnExecutorAfterAll(
+            int priority,
+            String method,
+            Runnable runnable) {
+        ExecutorStats.Method m = ExecutorStats.get(method);
+        synchronized (lock) {
+            Lane factoryLane = getLane(FACTORY_LANE);
+            Gate gate = new Gate(lanes.size() - 1, runnable);
+            factoryLane.execute(priority, m, gate);
+            for (Lane lane : lanes.values()) {
+                if (lane != factoryLane) {
+                    lane.execute(PRIORITY_BULK, null, gate::countDown);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the lane with the given id. Tasks already submitted to it still
+     * run; tasks submitted afterwards start a new lane.
+     * @param laneId
+     */
+    public static void releaseLane(int laneId) {
+        if (laneId != FACTORY_LANE) {
+            synchronized (lock) {
+                lanes.remove(laneId);
+            }
+        }
+    }
+
+    private static Lane getLane(int laneId) {
+        Lane lane = lanes.get(laneId);
+        if (lane == null) {
+            lane = new Lane();
+            lanes.put(laneId, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * The loop of the pool threads.
+     */
+    private static void work() {
+        while (true) {
+            Lane lane;
+            Runnable task;
+            ExecutorStats.Method method;
+            long queuedAt;
+            synchronized (lock) {
+                lane = pollReady();
+                if (lane == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Keep serving the lanes.
+                    }
+                    continue;
+                }
+                lane.take();
+                task = lane.task;
+                method = lane.method;
+                queuedAt = lane.queuedAt;
+                lane.task = null;
+                lane.method = null;
+            }
+
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // Same outcome as an exception thrown on the executor thread
+                // used to have, without losing a pool thread.
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            } finally {
+                ExecutorStats.onRun(method, queuedAt, start, System.nanoTime());
+                synchronized (lock) {
+                    lane.running = false;
+                    lane.schedule();
+                }
+            }
+        }
+    }
+
+    private static Lane pollReady() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            Lane lane = ready[i].poll();
+            if (lane != null) {
+                lane.readyPriority = -1;
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A task which may only run once a number of lanes, possibly including
+     * its own, have reached a certain point. Until then no task submitted to
+     * its lane after it may run, while the tasks submitted before it still
+     * do. Since a gate only
+     * ever waits for tasks submitted before it, gates cannot deadlock.
+     */
+    private static final class Gate implements Runnable {
+        private final Runnable runnable;
+        private int pending;
+        private Lane lane;
+        private long seq;
+
+        Gate(int pending, Runnable runnable) {
+            this.pending = pending;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        void countDown() {
+            synchronized (lock) {
+                if (--pending == 0) {
+                    lane.schedule();
+                }
+            }
+        }
+
+        boolean isOpen() {
+            return pending <= 0;
+        }
+    }
+
+    /**
+     * A FIFO ring buffer of tasks with parallel arrays for the bookkeeping of
+     * {@link ExecutorStats} so that queueing a task allocates nothing but the
+     * task itself (once the buffer has grown to the lane's working size).
+     */
+    private static final class TaskQueue {
+        private Runnable[] tasks = new Runnable[8];
+        private ExecutorStats.Method[] methods = new ExecutorStats.Method[8];
+        private long[] queuedAt = new long[8];
+        private long[] seqs = new long[8];
+        private int head;
+        int size;
+
+        void add(
+                Runnable task,
+                ExecutorStats.Method method,
+                long now,
+                long seq) {
+            if (size == tasks.length) {
+                grow();
+            }
+            int tail = (head + size) % tasks.length;
+            tasks[tail] = task;
+            methods[tail] = method;
+            queuedAt[tail] = now;
+            seqs[tail] = seq;
+            size++;
+        }
+
+        long headSeq() {
+            return seqs[head];
+        }
+
+        /**
+         * Moves the head of this queue into the current task of a lane.
+         */
+        void pollInto(Lane lane) {
+            lane.task = tasks[head];
+            lane.method = methods[head];
+            lane.queuedAt = queuedAt[head];
+            tasks[head] = null;
+            methods[head] = null;
+            head = (head + 1) % tasks.length;
+            size--;
+        }
+
+        private void grow() {
+            int length = tasks.length;
+            Runnable[] newTasks = new Runnable[length * 2];
+            ExecutorStats.Method[] newMethods
+                = new ExecutorStats.Method[length * 2];
+            long[] newQueuedAt = new long[length * 2];
+            long[] newSeqs = new long[length * 2];
+            for (int i = 0; i < size; i++) {
+                int j = (head + i) % length;
+                newTasks[i] = tasks[j];
+                newMethods[i] = methods[j];
+                newQueuedAt[i] = queuedAt[j];
+                newSeqs[i] = seqs[j];
+            }
+            tasks = newTasks;
+            methods = newMethods;
+            queuedAt = newQueuedAt;
+            seqs = newSeqs;
+            head = 0;
+        }
+    }
+
+    /**
+     * The tasks of a single PeerConnection (or of the factory), one FIFO
+     * queue per priority. All state is guarded by {@link #lock}.
+     */
+    private static final class Lane {
+        private final TaskQueue[] queues = new TaskQueue[PRIORITY_COUNT];
+        private int size;
+
+        /**
+         * The gates queued on this lane in submission order.
+         */
+        private final ArrayDeque<Gate> gates = new ArrayDeque<>();
+
+        /**
+         * The priority of the ready queue this lane is in or -1.
+         */
+        int readyPriority = -1;
+
+        /**
+         * Whether a pool thread is running a task of this lane.
+         */
+        boolean running;
+
+        /**
+         * The task taken by {@link #take()} along with its bookkeeping.
+         */
+        Runnable task;
+        ExecutorStats.Method method;
+        long queuedAt;
+
+        Lane() {
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                queues[i] = new TaskQueue();
+            }
+        }
+
+        void execute(int priority, ExecutorStats.Method method, Runnable task) {
+            long seq = nextSeq++;
+            if (task instanceof Gate) {
+                Gate gate = (Gate) task;
+                gate.lane = this;
+                gate.seq = seq;
+                gates.add(gate);
+            }
+            queues[priority].add(task, method, System.nanoTime(), seq);
+            ExecutorStats.onQueued(method, ++size);
+            schedule();
+        }
+
+        /**
+         * Puts this lane into the ready queue matching its most urgent
+         * runnable task, moving it there if it already is in a less urgent one.
+         */
+        void schedule() {
+            int priority;
+            if (running || (priority = nextPriority()) == -1) {
+                return;
+            }
+            if (readyPriority != -1) {
+                if (readyPriority <= priority) {
+                    return;
+                }
+                ready[readyPriority].remove(this);
+            }
+            readyPriority = priority;
+            ready[priority].add(this);
+            lock.notify();
+        }
+
+        /**
+         * Takes the next task to run into {@link #task}.
+         */
+        void take() {
+            queues[nextPriority()].pollInto(this);
+            if (task instanceof Gate) {
+                gates.remove(task);
+            }
+            size--;
+            running = true;
+        }
+
+        /**
+         * Returns the most urgent priority with a task which may run now,
+         * i.e. which was submitted before the first closed gate, or -1.
+         */
+        private int nextPriority() {
+            long barrier = Long.MAX_VALUE;
+            for (Gate gate : gates) {
+                if (!gate.isOpen()) {
+                    barrier = gate.seq;
+                    break;
+                }
+            }
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                TaskQueue queue = queues[i];
+                if (queue.size != 0 && queue.headSeq() < barrier) {
+                    return i;
+                }
+            }
+            return -1;
+        }
     }
 }
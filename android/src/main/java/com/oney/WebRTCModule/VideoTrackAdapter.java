@@ -128,8 +128,8 @@ public class VideoTrackAdapter {
                     + " streamTag: " + streamReactTag
                     + " trackId: " + trackId);
 
-            VideoTrackAdapter.this.webRTCModule.sendEvent(
-                "mediaStreamTrackMuteChanged", params);
+            VideoTrackAdapter.this.webRTCModule.sendStateEvent(
+                "mediaStreamTrackMuteChanged", params, peerConnectionId, trackId);
         }
 
         void dispose() {
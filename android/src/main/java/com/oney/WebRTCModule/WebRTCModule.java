@@ -2,7 +2,6 @@ package com.oney.WebRTCModule;
 
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
@@ -15,13 +14,16 @@ import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.module.annotations.ReactModule;
+import com.facebook.react.modules.blob.BlobModule;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.WritableArray;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.webrtc.*;
 import org.webrtc.audio.AudioDeviceModule;
@@ -32,7 +34,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     static final String TAG = WebRTCModule.class.getCanonicalName();
 
     PeerConnectionFactory mFactory;
-    private final SparseArray<PeerConnectionObserver> mPeerConnectionObservers;
+    /**
+     * The {@link PeerConnectionObserver}s mapped by id. Accessed from the
+     * lanes of {@link ThreadUtils} concurrently.
+     */
+    private final Map<Integer, PeerConnectionObserver> mPeerConnectionObservers;
     final Map<String, MediaStream> localStreams;
     final Map<String, MediaStreamTrack> localTracks;
 
@@ -42,6 +48,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
      */
     private GetUserMediaImpl getUserMediaImpl;
 
+    /**
+     * Optionally batches the events sent to JavaScript.
+     */
+    private final EventBatcher eventBatcher;
+
     public static class Options {
         private VideoEncoderFactory videoEncoderFactory = null;
         private VideoDecoderFactory videoDecoderFactory = null;
@@ -69,11 +80,18 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public WebRTCModule(ReactApplicationContext reactContext, Options options) {
         super(reactContext);
 
-        mPeerConnectionObservers = new SparseArray<>();
-        localStreams = new HashMap<>();
-        localTracks = new HashMap<>();
+        mPeerConnectionObservers = new ConcurrentHashMap<>();
+        localStreams = new ConcurrentHashMap<>();
+        localTracks = new ConcurrentHashMap<>();
+        eventBatcher = new EventBatcher(this);
+
+        registerExecutorStats();
 
-        ThreadUtils.runOnExecutor(() -> initAsync(options));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "initAsync",
+            () -> initAsync(options));
     }
 
     /**
@@ -127,6 +145,19 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         getUserMediaImpl = new GetUserMediaImpl(this, reactContext);
     }
 
+    /**
+     * Registers the {@link ExecutorStats} counters of every bridge method
+     * upfront so that submitting a task never has to allocate them.
+     */
+    private static void registerExecutorStats() {
+        ExecutorStats.register("initAsync");
+        for (Method m : WebRTCModule.class.getMethods()) {
+            if (m.isAnnotationPresent(ReactMethod.class)) {
+                ExecutorStats.register(m.getName());
+            }
+        }
+    }
+
     @Override
     public String getName() {
         return "WebRTCModule";
@@ -138,9 +169,43 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     }
 
     void sendEvent(String eventName, @Nullable WritableMap params) {
+        if (!eventBatcher.offer(eventName, params)) {
+            emitEvent(eventName, params);
+        }
+    }
+
+    /**
+     * Sends a state event of which only the latest value matters. While
+     * events are batched, a pending event with the same name, PeerConnection
+     * id and object id is dropped in favor of the new one.
+     *
+     * @param peerConnectionId the id of the PeerConnection the event is about
+     * @param objectId the id of the object (data channel, track) within the
+     * PeerConnection the event is about or <tt>null</tt>
+     */
+    void sendStateEvent(
+            String eventName,
+            @Nullable WritableMap params,
+            int peerConnectionId,
+            @Nullable String objectId) {
+        if (!eventBatcher.offerState(
+                eventName, params, peerConnectionId, objectId)) {
+            emitEvent(eventName, params);
+        }
+    }
+
+    /**
+     * Returns the <tt>BlobModule</tt> which holds the binary data channel
+     * messages exchanged as Blobs.
+     */
+    BlobModule getBlobModule() {
+        return getReactApplicationContext().getNativeModule(BlobModule.class);
+    }
+
+    void emitEvent(String eventName, @Nullable Object data) {
         getReactApplicationContext()
             .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-            .emit(eventName, params);
+            .emit(eventName, data);
     }
 
     private PeerConnection.IceServer createIceServer(String url) {
@@ -403,8 +468,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         PeerConnection.RTCConfiguration rtcConfiguration
             = parseRTCConfiguration(configuration);
 
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionInitAsync(rtcConfiguration, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionInit",
+            () -> peerConnectionInitAsync(rtcConfiguration, id));
     }
 
     private void peerConnectionInitAsync(
@@ -422,8 +490,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         MediaStream stream = localStreams.get(streamReactTag);
 
         if (stream == null) {
-            for (int i = 0, size = mPeerConnectionObservers.size(); i < size; i++) {
-                PeerConnectionObserver pco = mPeerConnectionObservers.valueAt(i);
+            for (PeerConnectionObserver pco : mPeerConnectionObservers.values()) {
                 stream = pco.remoteStreams.get(streamReactTag);
                 if (stream != null) {
                     break;
@@ -438,8 +505,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         MediaStreamTrack track = getLocalTrack(trackId);
 
         if (track == null) {
-            for (int i = 0, size = mPeerConnectionObservers.size(); i < size; i++) {
-                PeerConnectionObserver pco = mPeerConnectionObservers.valueAt(i);
+            for (PeerConnectionObserver pco : mPeerConnectionObservers.values()) {
                 track = pco.remoteTracks.get(trackId);
                 if (track != null) {
                     break;
@@ -507,19 +573,30 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void getUserMedia(ReadableMap constraints,
                              Callback    successCallback,
                              Callback    errorCallback) {
-        ThreadUtils.runOnExecutor(() ->
-            getUserMediaImpl.getUserMedia(constraints, successCallback, errorCallback));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_BULK,
+            "getUserMedia",
+            () ->
+                getUserMediaImpl.getUserMedia(constraints, successCallback, errorCallback));
     }
 
     @ReactMethod
     public void enumerateDevices(Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            callback.invoke(getUserMediaImpl.enumerateDevices()));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_BULK,
+            "enumerateDevices",
+            () -> callback.invoke(getUserMediaImpl.enumerateDevices()));
     }
 
     @ReactMethod
     public void mediaStreamCreate(String id) {
-        ThreadUtils.runOnExecutor(() -> mediaStreamCreateAsync(id));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamCreate",
+            () -> mediaStreamCreateAsync(id));
     }
 
     private void mediaStreamCreateAsync(String id) {
@@ -535,8 +612,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void mediaStreamAddTrack(String streamId, String trackId) {
-        ThreadUtils.runOnExecutor(() ->
-            mediaStreamAddTrackAsync(streamId, trackId));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamAddTrack",
+            () -> mediaStreamAddTrackAsync(streamId, trackId));
     }
 
     private void mediaStreamAddTrackAsync(String streamId, String trackId) {
@@ -564,8 +644,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
      */
     @ReactMethod
     public void mediaStreamRemoveTrack(String streamId, String trackId) {
-        ThreadUtils.runOnExecutor(() ->
-            mediaStreamRemoveTrackAsync(streamId, trackId));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamRemoveTrack",
+            () -> mediaStreamRemoveTrackAsync(streamId, trackId));
     }
 
     private void mediaStreamRemoveTrackAsync(String streamId, String trackId) {
@@ -587,7 +670,10 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamRelease(String id) {
-        ThreadUtils.runOnExecutor(() -> mediaStreamReleaseAsync(id));
+        ThreadUtils.runOnExecutorAfterAll(
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamRelease",
+            () -> mediaStreamReleaseAsync(id));
     }
 
     private void mediaStreamReleaseAsync(String id) {
@@ -617,18 +703,43 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         localStreams.remove(id);
 
         // MediaStream.dispose() may be called without an exception only if
-        // it's no longer added to any PeerConnection.
-        for (int i = 0, size = mPeerConnectionObservers.size(); i < size; i++) {
-            mPeerConnectionObservers.valueAt(i).removeStream(stream);
+        // it's no longer added to any PeerConnection. Each PeerConnection
+        // removes it on its own lane, which owns its list of local streams,
+        // and the last one to do so disposes of it.
+        List<Map.Entry<Integer, PeerConnectionObserver>> pcos
+            = new ArrayList<>(mPeerConnectionObservers.entrySet());
+        if (pcos.isEmpty()) {
+            stream.dispose();
+            return;
+        }
+        AtomicInteger pending = new AtomicInteger(pcos.size());
+        for (Map.Entry<Integer, PeerConnectionObserver> entry : pcos) {
+            int pcId = entry.getKey();
+            ThreadUtils.runOnExecutor(
+                pcId,
+                ThreadUtils.PRIORITY_NORMAL,
+                "mediaStreamRelease",
+                () -> {
+                    // The PeerConnection may have been closed in the meantime.
+                    PeerConnectionObserver pco
+                        = mPeerConnectionObservers.get(pcId);
+                    if (pco != null) {
+                        pco.removeStream(stream);
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        stream.dispose();
+                    }
+                });
         }
-
-        stream.dispose();
     }
 
     @ReactMethod
     public void mediaStreamTrackRelease(String id) {
-        ThreadUtils.runOnExecutor(() ->
-            mediaStreamTrackReleaseAsync(id));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamTrackRelease",
+            () -> mediaStreamTrackReleaseAsync(id));
     }
 
     private void mediaStreamTrackReleaseAsync(String id) {
@@ -643,8 +754,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamTrackSetEnabled(String id, boolean enabled) {
-        ThreadUtils.runOnExecutor(() ->
-            mediaStreamTrackSetEnabledAsync(id, enabled));
+        ThreadUtils.runOnExecutor(
+            ThreadUtils.FACTORY_LANE,
+            ThreadUtils.PRIORITY_NORMAL,
+            "mediaStreamTrackSetEnabled",
+            () -> mediaStreamTrackSetEnabledAsync(id, enabled));
     }
 
     private void mediaStreamTrackSetEnabledAsync(String id, boolean enabled) {
@@ -670,8 +784,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void peerConnectionSetConfiguration(ReadableMap configuration,
                                                int id) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionSetConfigurationAsync(configuration, id));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionSetConfiguration",
+            () -> peerConnectionSetConfigurationAsync(configuration, id));
     }
 
     private void peerConnectionSetConfigurationAsync(ReadableMap configuration,
@@ -687,8 +804,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     // deprecated use peerConnectionAddTrack
     @ReactMethod
     public void peerConnectionAddStream(String streamId, int id) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionAddStreamAsync(streamId, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionAddStream",
+            () -> peerConnectionAddStreamAsync(streamId, id));
     }
 
     private void peerConnectionAddStreamAsync(String streamId, int id) {
@@ -705,8 +825,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionAddTrack(String trackId, String streamId, int id) {
-        ThreadUtils.runOnExecutor(() ->
-                peerConnectionAddTrackAsync(trackId, streamId, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionAddTrack",
+            () -> peerConnectionAddTrackAsync(trackId, streamId, id));
     }
 
     private void peerConnectionAddTrackAsync(String trackId, String streamId, int id) {
@@ -724,8 +847,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionRemoveTrack(String trackId, String streamId, int id) {
-        ThreadUtils.runOnExecutor(() ->
-                peerConnectionRemoveTrackAsync(trackId, streamId, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionRemoveTrack",
+            () -> peerConnectionRemoveTrackAsync(trackId, streamId, id));
     }
 
     private void peerConnectionRemoveTrackAsync(String trackId, String streamId, int id) {
@@ -743,8 +869,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionRemoveStream(String streamId, int id) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionRemoveStreamAsync(streamId, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionRemoveStream",
+            () -> peerConnectionRemoveStreamAsync(streamId, id));
     }
 
     private void peerConnectionRemoveStreamAsync(String streamId, int id) {
@@ -761,8 +890,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionRemoveTrack(String trackId, int id) {
-        ThreadUtils.runOnExecutor(() ->
-                peerConnectionRemoveTrackAsync(trackId, id));
+        ThreadUtils.runOnExecutorAfterFactory(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionRemoveTrack",
+            () -> peerConnectionRemoveTrackAsync(trackId, id));
     }
 
     private void peerConnectionRemoveTrackAsync(String trackId, int id) {
@@ -781,8 +913,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionCreateOffer(int id,
                                           ReadableMap options,
                                           Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionCreateOfferAsync(id, options, callback));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionCreateOffer",
+            () -> peerConnectionCreateOfferAsync(id, options, callback));
     }
 
     private void peerConnectionCreateOfferAsync(int id,
@@ -821,8 +956,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionCreateAnswer(int id,
                                            ReadableMap options,
                                            Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionCreateAnswerAsync(id, options, callback));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionCreateAnswer",
+            () -> peerConnectionCreateAnswerAsync(id, options, callback));
     }
 
     private void peerConnectionCreateAnswerAsync(int id,
@@ -862,8 +1000,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionSetLocalDescription(ReadableMap sdpMap,
                                                   int id,
                                                   Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionSetLocalDescriptionAsync(sdpMap, id, callback));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionSetLocalDescription",
+            () -> peerConnectionSetLocalDescriptionAsync(sdpMap, id, callback));
     }
 
     private void peerConnectionSetLocalDescriptionAsync(ReadableMap sdpMap,
@@ -908,8 +1049,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionSetRemoteDescription(ReadableMap sdpMap,
                                                    int id,
                                                    Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionSetRemoteDescriptionAsync(sdpMap, id, callback));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionSetRemoteDescription",
+            () -> peerConnectionSetRemoteDescriptionAsync(sdpMap, id, callback));
     }
 
     private void peerConnectionSetRemoteDescriptionAsync(ReadableMap sdpMap,
@@ -954,8 +1098,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionAddICECandidate(ReadableMap candidateMap,
                                               int id,
                                               Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionAddICECandidateAsync(candidateMap, id, callback));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionAddICECandidate",
+            () -> peerConnectionAddICECandidateAsync(candidateMap, id, callback));
     }
 
     private void peerConnectionAddICECandidateAsync(ReadableMap candidateMap,
@@ -965,12 +1112,8 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         PeerConnection peerConnection = getPeerConnection(id);
         Log.d(TAG, "peerConnectionAddICECandidate() start");
         if (peerConnection != null) {
-            IceCandidate candidate = new IceCandidate(
-                candidateMap.getString("sdpMid"),
-                candidateMap.getInt("sdpMLineIndex"),
-                candidateMap.getString("candidate")
-            );
-            result = peerConnection.addIceCandidate(candidate);
+            result = peerConnection.addIceCandidate(
+                iceCandidateFromMap(candidateMap));
         } else {
             Log.d(TAG, "peerConnectionAddICECandidate() peerConnection is null");
         }
@@ -978,10 +1121,60 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         Log.d(TAG, "peerConnectionAddICECandidate() end");
     }
 
+    /**
+     * Adds a number of remote ICE candidates to a <tt>PeerConnection</tt> in a
+     * single executor task. Signaling servers tend to deliver candidates in
+     * bundles and adding them one by one costs a bridge round trip each.
+     *
+     * @param candidates the candidates to add, in order
+     * @param id the id of the <tt>PeerConnection</tt>
+     * @param callback invoked once with an array holding the result of adding
+     * each of the <tt>candidates</tt>
+     */
+    @ReactMethod
+    public void peerConnectionAddICECandidates(ReadableArray candidates,
+                                               int id,
+                                               Callback callback) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionAddICECandidates",
+            () -> peerConnectionAddICECandidatesAsync(candidates, id, callback));
+    }
+
+    private void peerConnectionAddICECandidatesAsync(ReadableArray candidates,
+                                                     int id,
+                                                     Callback callback) {
+        PeerConnection peerConnection = getPeerConnection(id);
+        if (peerConnection == null) {
+            Log.d(TAG, "peerConnectionAddICECandidates() peerConnection is null");
+        }
+
+        WritableArray results = Arguments.createArray();
+        for (int i = 0, size = candidates.size(); i < size; i++) {
+            results.pushBoolean(
+                peerConnection != null
+                    && peerConnection.addIceCandidate(
+                        iceCandidateFromMap(candidates.getMap(i))));
+        }
+        callback.invoke(results);
+    }
+
+    private static IceCandidate iceCandidateFromMap(ReadableMap candidateMap) {
+        return new IceCandidate(
+            candidateMap.getString("sdpMid"),
+            candidateMap.getInt("sdpMLineIndex"),
+            candidateMap.getString("candidate")
+        );
+    }
+
     @ReactMethod
     public void peerConnectionGetStats(String trackId, int id, Callback cb) {
-        ThreadUtils.runOnExecutor(() ->
-            peerConnectionGetStatsAsync(trackId, id, cb));
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionGetStats",
+            () -> peerConnectionGetStatsAsync(trackId, id, cb));
     }
 
     private void peerConnectionGetStatsAsync(String trackId,
@@ -993,13 +1186,302 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
             String emptyStats = "{}";
             cb.invoke(true, emptyStats);
         } else {
-            pco.getStats(trackId, cb);
+            pco.getStats(trackId, null, cb);
         }
     }
 
+    /**
+     * Gets the legacy stats of a PeerConnection like
+     * {@link #peerConnectionGetStats} but only serializes the reports and
+     * values accepted by a filter.
+     *
+     * @param filter <tt>{types, values, trackIds}</tt>, see
+     * {@link StatsFilter}
+     */
+    @ReactMethod
+    public void peerConnectionGetFilteredStats(String trackId,
+                                               int id,
+                                               ReadableMap filter,
+                                               Callback cb) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionGetFilteredStats",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionGetFilteredStats() peerConnection is null");
+                    cb.invoke(true, "{}");
+                } else {
+                    pco.getStats(trackId, StatsFilter.fromMap(filter), cb);
+                }
+            });
+    }
+
+    /**
+     * Gets the stats of a PeerConnection in the format of the WebRTC
+     * specification (see {@link PeerConnectionObserver#getStatsReport}).
+     *
+     * @param options <tt>trackId</tt>, <tt>scope</tt> and <tt>filter</tt>
+     * @param cb invoked with <tt>true</tt> and the JSON of the report or
+     * with <tt>false</tt> and an error message
+     */
+    @ReactMethod
+    public void peerConnectionGetStatsReport(int id,
+                                             ReadableMap options,
+                                             Callback cb) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionGetStatsReport",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionGetStatsReport() peerConnection is null");
+                    cb.invoke(false, "PeerConnection not found");
+                } else {
+                    pco.getStatsReport(options, cb);
+                }
+            });
+    }
+
+    /**
+     * Gets the stats of several PeerConnections in one call, in the format of
+     * {@link #peerConnectionGetStatsReport}. They are collected concurrently
+     * and delivered together, keyed by PeerConnection id, once all of them
+     * have arrived or <tt>timeoutMs</tt> has elapsed, whichever comes first
+     * (see {@link StatsAggregator}).
+     *
+     * @param options <tt>ids</tt> (the ids of the PeerConnections, defaults
+     * to all of them), <tt>timeoutMs</tt> (defaults to
+     * {@link StatsAggregator#DEFAULT_TIMEOUT_MS}) and <tt>filter</tt>
+     * @param cb invoked with <tt>true</tt> and the JSON of <tt>{reports,
+     * timedOut}</tt>
+     */
+    @ReactMethod
+    public void getStatsReports(@Nullable ReadableMap options, Callback cb) {
+        List<Integer> ids = null;
+        if (options != null && options.hasKey("ids") && !options.isNull("ids")) {
+            ReadableArray idArray = options.getArray("ids");
+            ids = new ArrayList<>(idArray.size());
+            for (int i = 0, size = idArray.size(); i < size; i++) {
+                ids.add(idArray.getInt(i));
+            }
+        }
+        long timeoutMs
+            = options != null && options.hasKey("timeoutMs")
+                ? (long) options.getDouble("timeoutMs")
+                : StatsAggregator.DEFAULT_TIMEOUT_MS;
+        StatsFilter filter
+            = options != null && options.hasKey("filter")
+                ? StatsFilter.fromMap(options.getMap("filter"))
+                : null;
+        StatsAggregator.getStats(
+            mPeerConnectionObservers, ids, timeoutMs, filter, cb);
+    }
+
+    /**
+     * Samples the stats of a PeerConnection natively and emits only what
+     * changed, as <tt>peerConnectionStatsDelta</tt> events.
+     *
+     * @param options <tt>intervalMs</tt>
+     */
+    @ReactMethod
+    public void peerConnectionSubscribeStats(int id, ReadableMap options) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionSubscribeStats",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionSubscribeStats() peerConnection is null");
+                } else {
+                    pco.subscribeStats(options);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void peerConnectionUnsubscribeStats(int id) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionUnsubscribeStats",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionUnsubscribeStats() peerConnection is null");
+                } else {
+                    pco.unsubscribeStats();
+                }
+            });
+    }
+
+    /**
+     * Starts keeping a fixed-size history of selected stats of a
+     * PeerConnection, see {@link StatsHistory}.
+     *
+     * @param config <tt>intervalMs</tt>, <tt>capacity</tt> and
+     * <tt>series</tt>
+     */
+    @ReactMethod
+    public void peerConnectionStartStatsHistory(int id, ReadableMap config) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionStartStatsHistory",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionStartStatsHistory() peerConnection is null");
+                } else {
+                    pco.startStatsHistory(config);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void peerConnectionStopStatsHistory(int id) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionStopStatsHistory",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionStopStatsHistory() peerConnection is null");
+                } else {
+                    pco.stopStatsHistory();
+                }
+            });
+    }
+
+    /**
+     * Downsamples a range of the stats history of a PeerConnection.
+     *
+     * @param query <tt>from</tt>, <tt>to</tt> and <tt>buckets</tt>, see
+     * {@link StatsHistory#query}
+     * @param callback invoked with <tt>true</tt> and the result or with
+     * <tt>false</tt> and an error message
+     */
+    @ReactMethod
+    public void peerConnectionQueryStatsHistory(int id,
+                                                ReadableMap query,
+                                                Callback callback) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionQueryStatsHistory",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                StatsHistory history;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionQueryStatsHistory() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                } else if ((history = pco.getStatsHistory()) == null) {
+                    callback.invoke(false, "No stats history");
+                } else {
+                    callback.invoke(true, history.query(query));
+                }
+            });
+    }
+
+    /**
+     * Writes the stats history of a PeerConnection to a CSV file.
+     *
+     * @param callback invoked with <tt>true</tt> or with <tt>false</tt> and
+     * an error message
+     */
+    @ReactMethod
+    public void peerConnectionDumpStatsHistory(int id,
+                                               String path,
+                                               Callback callback) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionDumpStatsHistory",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                StatsHistory history;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionDumpStatsHistory() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                    return;
+                } else if ((history = pco.getStatsHistory()) == null) {
+                    callback.invoke(false, "No stats history");
+                    return;
+                }
+
+                // The file is written on the factory lane so that the sends
+                // and stats of the PeerConnection do not wait for it.
+                StatsHistory.Snapshot snapshot = history.snapshot();
+                ThreadUtils.runOnExecutor(
+                    ThreadUtils.FACTORY_LANE,
+                    ThreadUtils.PRIORITY_BULK,
+                    "statsHistoryWrite",
+                    () -> {
+                        String error = snapshot.write(path);
+                        if (error != null) {
+                            Log.e(TAG, "peerConnectionDumpStatsHistory() " + error);
+                            callback.invoke(false, error);
+                        } else {
+                            callback.invoke(true);
+                        }
+                    });
+            });
+    }
+
+    /**
+     * Starts estimating the quality of the tracks of a PeerConnection from
+     * its stats, emitting <tt>peerConnectionQualityChanged</tt> events when
+     * the quality level of a track changes, see {@link QualityEstimator}.
+     *
+     * @param config <tt>intervalMs</tt>, <tt>thresholds</tt>,
+     * <tt>window</tt> and <tt>hysteresis</tt>
+     */
+    @ReactMethod
+    public void peerConnectionStartQualityEstimation(int id,
+                                                     ReadableMap config) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionStartQualityEstimation",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionStartQualityEstimation() peerConnection is null");
+                } else {
+                    pco.startQualityEstimation(config);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void peerConnectionStopQualityEstimation(int id) {
+        ThreadUtils.runOnExecutor(
+            id,
+            ThreadUtils.PRIORITY_BULK,
+            "peerConnectionStopQualityEstimation",
+            () -> {
+                PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "peerConnectionStopQualityEstimation() peerConnection is null");
+                } else {
+                    pco.stopQualityEstimation();
+                }
+            });
+    }
+
     @ReactMethod
     public void peerConnectionClose(int id) {
-        ThreadUtils.runOnExecutor(() -> peerConnectionCloseAsync(id));
+        // Closing drops the data channels and streams of the PeerConnection,
+        // so the sends and removals queued before it run first.
+        ThreadUtils.runOnExecutorAfterQueued(
+            id,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "peerConnectionClose",
+            () -> peerConnectionCloseAsync(id));
     }
 
     private void peerConnectionCloseAsync(int id) {
@@ -1010,14 +1492,23 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
             pco.close();
             mPeerConnectionObservers.remove(id);
         }
+        ThreadUtils.releaseLane(id);
     }
 
+    /**
+     * Creates a data channel. <tt>config</tt> carries, besides the
+     * <tt>RTCDataChannelInit</tt>, the <tt>handle</tt> under which all the
+     * other data channel methods and events refer to the channel.
+     */
     @ReactMethod
     public void createDataChannel(int peerConnectionId,
                                   String label,
                                   ReadableMap config) {
-        ThreadUtils.runOnExecutor(() ->
-            createDataChannelAsync(peerConnectionId, label, config));
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_CRITICAL,
+            "createDataChannel",
+            () -> createDataChannelAsync(peerConnectionId, label, config));
     }
 
     private void createDataChannelAsync(int peerConnectionId,
@@ -1030,18 +1521,21 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         if (pco == null || pco.getPeerConnection() == null) {
             Log.d(TAG, "createDataChannel() peerConnection is null");
         } else {
-            pco.createDataChannel(label, config);
+            pco.createDataChannel(config.getInt("handle"), label, config);
         }
     }
 
     @ReactMethod
-    public void dataChannelClose(int peerConnectionId, int dataChannelId) {
-        ThreadUtils.runOnExecutor(() ->
-            dataChannelCloseAsync(peerConnectionId, dataChannelId));
+    public void dataChannelClose(int peerConnectionId, int handle) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelClose",
+            () -> dataChannelCloseAsync(peerConnectionId, handle));
     }
 
     private void dataChannelCloseAsync(int peerConnectionId,
-                                       int dataChannelId) {
+                                       int handle) {
         // Forward to PeerConnectionObserver which deals with DataChannels
         // because DataChannel is owned by PeerConnection.
         PeerConnectionObserver pco
@@ -1049,21 +1543,25 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         if (pco == null || pco.getPeerConnection() == null) {
             Log.d(TAG, "dataChannelClose() peerConnection is null");
         } else {
-            pco.dataChannelClose(dataChannelId);
+            pco.dataChannelClose(handle);
         }
     }
 
     @ReactMethod
     public void dataChannelSend(int peerConnectionId,
-                                int dataChannelId,
+                                int handle,
                                 String data,
                                 String type) {
-        ThreadUtils.runOnExecutor(() ->
-            dataChannelSendAsync(peerConnectionId, dataChannelId, data, type));
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSend",
+            () ->
+                dataChannelSendAsync(peerConnectionId, handle, data, type));
     }
 
     private void dataChannelSendAsync(int peerConnectionId,
-                                      int dataChannelId,
+                                      int handle,
                                       String data,
                                       String type) {
         // Forward to PeerConnectionObserver which deals with DataChannels
@@ -1073,7 +1571,361 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         if (pco == null || pco.getPeerConnection() == null) {
             Log.d(TAG, "dataChannelSend() peerConnection is null");
         } else {
-            pco.dataChannelSend(dataChannelId, data, type);
+            pco.dataChannelSend(handle, data, type);
+        }
+    }
+
+    /**
+     * Sends a batch of messages over the data channels of a PeerConnection
+     * in order, in a single executor task.
+     *
+     * @param messages <tt>{handle, data, type}</tt> maps: <tt>handle</tt> is
+     * the handle of the data channel, <tt>type</tt> is <tt>"text"</tt>, <tt>"binary"</tt>
+     * (Base64-encoded <tt>data</tt>) or <tt>"blob"</tt> (<tt>data</tt> being
+     * the <tt>data</tt> of a Blob)
+     * @param callback invoked with <tt>{sent, failed, failures}</tt>, the
+     * <tt>failures</tt> being <tt>{index, error}</tt> maps, and an
+     * <tt>error</tt> if the PeerConnection is gone
+     */
+    @ReactMethod
+    public void dataChannelSendBatch(ReadableArray messages,
+                                     int peerConnectionId,
+                                     Callback callback) {
+        // Blobs are resolved right away, like in dataChannelSendBlob.
+        int size = messages.size();
+        byte[][] blobs = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            ReadableMap message = messages.getMap(i);
+            if ("blob".equals(message.getString("type"))) {
+                blobs[i] = getBlobModule().resolve(message.getMap("data"));
+            }
+        }
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSendBatch",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSendBatch() peerConnection is null");
+                    WritableMap result = Arguments.createMap();
+                    result.putInt("sent", 0);
+                    result.putInt("failed", size);
+                    result.putArray("failures", Arguments.createArray());
+                    result.putString("error", "PeerConnection not found");
+                    callback.invoke(result);
+                } else {
+                    callback.invoke(pco.dataChannelSendBatch(messages, blobs));
+                }
+            });
+    }
+
+    /**
+     * Streams a local file over a data channel natively. Progress and the end
+     * of the transfer are reported by <tt>dataChannelFileTransferProgress</tt>
+     * and <tt>dataChannelFileTransferEnded</tt> events.
+     *
+     * @param transferId the id of the transfer, allocated by JavaScript
+     * @param options <tt>chunkSize</tt>, <tt>offset</tt>, <tt>length</tt>,
+     * <tt>maxBufferedAmount</tt> and <tt>progressIntervalMs</tt>
+     * @param callback invoked with <tt>true</tt> once the transfer has started
+     * or <tt>false</tt> and an error message
+     */
+    @ReactMethod
+    public void dataChannelSendFile(int peerConnectionId,
+                                    int handle,
+                                    int transferId,
+                                    String path,
+                                    ReadableMap options,
+                                    Callback callback) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSendFile",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                String error;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSendFile() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                } else if ((error = pco.dataChannelSendFile(
+                        handle, transferId, path, options)) != null) {
+                    callback.invoke(false, error);
+                } else {
+                    callback.invoke(true);
+                }
+            });
+    }
+
+    /**
+     * Writes the binary messages received by a data channel to a local file
+     * instead of delivering them to JavaScript. Progress and the end of the
+     * file are reported by <tt>dataChannelFileSinkProgress</tt> and
+     * <tt>dataChannelFileSinkEnded</tt> events.
+     *
+     * @param options <tt>append</tt>, <tt>preallocate</tt>,
+     * <tt>expectedBytes</tt>, <tt>checksum</tt> and
+     * <tt>progressIntervalMs</tt>
+     * @param callback invoked with <tt>true</tt> or <tt>false</tt> and an
+     * error message
+     */
+    @ReactMethod
+    public void dataChannelAttachFileSink(int peerConnectionId,
+                                          int handle,
+                                          String path,
+                                          ReadableMap options,
+                                          Callback callback) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelAttachFileSink",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                String error;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelAttachFileSink() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                } else if ((error = pco.dataChannelAttachFileSink(
+                        handle, path, options)) != null) {
+                    callback.invoke(false, error);
+                } else {
+                    callback.invoke(true);
+                }
+            });
+    }
+
+    /**
+     * Detaches the file sink of a data channel once the messages received so
+     * far have been written and finishes its file.
+     *
+     * @param callback invoked with <tt>true</tt> and <tt>{state,
+     * bytesWritten, checksum}</tt> or <tt>false</tt> and an error message
+     */
+    @ReactMethod
+    public void dataChannelDetachFileSink(int peerConnectionId,
+                                          int handle,
+                                          Callback callback) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelDetachFileSink",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                WritableMap result;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelDetachFileSink() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                } else if ((result = pco.dataChannelDetachFileSink(
+                        handle)) == null) {
+                    callback.invoke(false, "No file sink attached");
+                } else {
+                    callback.invoke(true, result);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void dataChannelCancelFileTransfer(int peerConnectionId,
+                                              int transferId) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelCancelFileTransfer",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelCancelFileTransfer() peerConnection is null");
+                } else {
+                    pco.dataChannelCancelFileTransfer(transferId);
+                }
+            });
+    }
+
+    /**
+     * Sends the contents of a Blob without going through Base64. The bytes
+     * are resolved right away so that JavaScript may close the Blob as soon
+     * as this method returns.
+     *
+     * @param blob the <tt>data</tt> of the Blob: <tt>blobId</tt>,
+     * <tt>offset</tt> and <tt>size</tt>
+     */
+    @ReactMethod
+    public void dataChannelSendBlob(int peerConnectionId,
+                                    int handle,
+                                    ReadableMap blob) {
+        byte[] bytes = getBlobModule().resolve(blob);
+        if (bytes == null) {
+            Log.e(TAG, "dataChannelSendBlob() Blob not found");
+            return;
         }
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSendBlob",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSendBlob() peerConnection is null");
+                } else {
+                    pco.dataChannelSend(handle, bytes, true);
+                }
+            });
+    }
+
+    /**
+     * Sets the buffered amount at or below which a data channel emits
+     * <tt>dataChannelBufferedAmountLow</tt>.
+     */
+    @ReactMethod
+    public void dataChannelSetBufferedAmountLowThreshold(int peerConnectionId,
+                                                         int handle,
+                                                         double threshold) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSetBufferedAmountLowThreshold",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSetBufferedAmountLowThreshold() peerConnection is null");
+                } else {
+                    pco.dataChannelSetBufferedAmountLowThreshold(
+                        handle, (long) threshold);
+                }
+            });
+    }
+
+    /**
+     * Applies the native options which <tt>createDataChannel</tt> accepts in
+     * its config (<tt>aggregation</tt>, <tt>sendQueue</tt>,
+     * <tt>maxBufferedAmount</tt>, <tt>framing</tt> and <tt>compression</tt>)
+     * to an existing data channel, typically one announced by the remote
+     * peer. Queued at the priority of the sends so that the messages sent
+     * before a change of framing or compression go out with the old one.
+     */
+    @ReactMethod
+    public void dataChannelSetOptions(int peerConnectionId,
+                                      int handle,
+                                      ReadableMap options) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSetOptions",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSetOptions() peerConnection is null");
+                } else {
+                    pco.dataChannelSetOptions(handle, options);
+                }
+            });
+    }
+
+    /**
+     * Sets how a data channel delivers binary messages: <tt>"arraybuffer"</tt>
+     * or <tt>"blob"</tt>.
+     */
+    @ReactMethod
+    public void dataChannelSetBinaryType(int peerConnectionId,
+                                         int handle,
+                                         String binaryType) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_NORMAL,
+            "dataChannelSetBinaryType",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelSetBinaryType() peerConnection is null");
+                } else {
+                    pco.dataChannelSetBinaryType(handle, binaryType);
+                }
+            });
+    }
+
+    /**
+     * Returns the batch size and latency statistics of a data channel
+     * created with an <tt>aggregation</tt> config.
+     *
+     * @param reset whether to reset the statistics after taking the snapshot
+     * @param callback invoked with <tt>true</tt> and the statistics or
+     * <tt>false</tt> and an error message
+     */
+    @ReactMethod
+    public void dataChannelGetAggregationStats(int peerConnectionId,
+                                               int handle,
+                                               boolean reset,
+                                               Callback callback) {
+        ThreadUtils.runOnExecutor(
+            peerConnectionId,
+            ThreadUtils.PRIORITY_BULK,
+            "dataChannelGetAggregationStats",
+            () -> {
+                PeerConnectionObserver pco
+                    = mPeerConnectionObservers.get(peerConnectionId);
+                WritableMap stats;
+                if (pco == null || pco.getPeerConnection() == null) {
+                    Log.d(TAG, "dataChannelGetAggregationStats() peerConnection is null");
+                    callback.invoke(false, "PeerConnection not found");
+                } else if ((stats = pco.dataChannelGetAggregationStats(
+                        handle, reset)) == null) {
+                    callback.invoke(false, "Aggregation not configured");
+                } else {
+                    callback.invoke(true, stats);
+                }
+            });
+    }
+
+    /**
+     * Returns the queue wait and run time statistics of the executor lanes
+     * per bridge method.
+     *
+     * @param reset whether to reset the statistics after taking the snapshot
+     * @param callback invoked with the snapshot
+     */
+    @ReactMethod
+    public void getExecutorStats(boolean reset, Callback callback) {
+        callback.invoke(ExecutorStats.snapshot(reset));
+    }
+
+    /**
+     * Configures the batching of the events sent to JavaScript.
+     *
+     * @param options <tt>enabled</tt>, <tt>flushOnFrame</tt>,
+     * <tt>maxBatchSize</tt>, <tt>maxDelayMs</tt>,
+     * <tt>maxInFlightBatches</tt>, <tt>maxQueuedEvents</tt>,
+     * <tt>pauseReadsOnOverflow</tt> and <tt>maxPauseMs</tt>
+     */
+    @ReactMethod
+    public void setEventBatching(ReadableMap options) {
+        eventBatcher.configure(options);
+    }
+
+    /**
+     * Acknowledges that JavaScript has dispatched an event batch.
+     */
+    @ReactMethod
+    public void eventBatchDelivered() {
+        eventBatcher.onBatchDelivered();
+    }
+
+    /**
+     * Returns the sizes of the event batches delivered so far.
+     *
+     * @param reset whether to reset the counters after taking the snapshot
+     * @param callback invoked with the snapshot
+     */
+    @ReactMethod
+    public void getEventBatchingStats(boolean reset, Callback callback) {
+        callback.invoke(eventBatcher.getStats(reset));
     }
 }
@@ -0,0 +1,175 @@
+package com.oney.WebRTCModule;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The send and receive paths of a data channel message in
+ * <tt>DataChannelObserver</tt>, minus the bridge and libwebrtc: from the
+ * string JavaScript passes to the <tt>DataChannel.Buffer</tt>s handed to
+ * libwebrtc and back from the buffers libwebrtc delivers to the event sent
+ * to JavaScript, with and without framing and, on the receiving side, with
+ * and without aggregation into batches.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataChannelBenchmark {
+    @Param({ "64", "1024", "16384", "262144" })
+    int size;
+
+    @Param({ "text", "binary" })
+    String type;
+
+    @Param({ "false", "true" })
+    boolean framed;
+
+    private boolean binary;
+    private String bridgeString;
+    private DataChannel dataChannel;
+    private MessageFraming sendFraming;
+
+    /**
+     * The frames of the message as libwebrtc delivers them.
+     */
+    private ByteBuffer[] frames;
+    private MessageFraming receiveFraming;
+    private MessageCodec codec;
+    private WebRTCModule webRTCModule;
+    private MessageAggregator aggregator;
+
+    @Setup
+    public void setUp() {
+        binary = type.equals("binary");
+        bridgeString = Payloads.bridgeString(size, binary);
+        dataChannel = new DataChannel();
+        sendFraming = framed ? new MessageFraming(Arguments.createMap()) : null;
+
+        byte[] bytes = Payloads.bytes(size, binary);
+        List<ByteBuffer> frames = new ArrayList<>();
+        if (framed) {
+            MessageFraming.Outgoing outgoing
+                = new MessageFraming(Arguments.createMap())
+                    .encode(bytes, binary);
+            while (!outgoing.isDone()) {
+                frames.add(Payloads.direct(outgoing.nextChunk()));
+            }
+        } else {
+            frames.add(Payloads.direct(ByteBuffer.wrap(bytes)));
+        }
+        this.frames = frames.toArray(new ByteBuffer[0]);
+        receiveFraming
+            = framed ? new MessageFraming(Arguments.createMap()) : null;
+        codec = new MessageCodec();
+        webRTCModule = new WebRTCModule();
+        aggregator
+            = new MessageAggregator(webRTCModule, 1, 1, Arguments.createMap());
+    }
+
+    /**
+     * <tt>dataChannelSend</tt> and <tt>DataChannelObserver.send</tt>.
+     */
+    @Benchmark
+    public long send() {
+        byte[] bytes = MessageCodec.fromBridge(bridgeString, type);
+        if (sendFraming == null) {
+            dataChannel.send(
+                new DataChannel.Buffer(ByteBuffer.wrap(bytes), binary));
+        } else {
+            MessageFraming.Outgoing outgoing
+                = sendFraming.encode(bytes, binary);
+            while (!outgoing.isDone()) {
+                dataChannel.send(
+                    new DataChannel.Buffer(outgoing.nextChunk(), true));
+            }
+        }
+        return dataChannel.sentMessages();
+    }
+
+    /**
+     * <tt>DataChannelObserver.onMessage</tt> delivering each message in a
+     * <tt>dataChannelReceiveMessage</tt> event of its own.
+     */
+    @Benchmark
+    public void receive(Blackhole bh) {
+        for (ByteBuffer frame : frames) {
+            ByteBuffer data;
+            boolean binary;
+            if (receiveFraming == null) {
+                data = frame;
+                binary = this.binary;
+            } else {
+                MessageFraming.Message message = receiveFraming.onFrame(frame);
+                if (message == null) {
+                    continue;
+                }
+                data = message.data;
+                binary = message.binary;
+            }
+            WritableMap params = Arguments.createMap();
+            params.putInt("handle", 1);
+            params.putInt("peerConnectionId", 1);
+            params.putString("type", binary ? "binary" : "text");
+            params.putString("data", decode(data, binary));
+            webRTCModule.sendEvent("dataChannelReceiveMessage", params);
+        }
+        bh.consume(webRTCModule.lastEventParams);
+    }
+
+    /**
+     * <tt>DataChannelObserver.onMessage</tt> with aggregation enabled (its
+     * defaults: batches of up to 16 KiB), which sends a
+     * <tt>dataChannelReceiveMessages</tt> event per batch.
+     */
+    @Benchmark
+    public void receiveBatched(Blackhole bh) {
+        for (ByteBuffer frame : frames) {
+            ByteBuffer data;
+            boolean binary;
+            if (receiveFraming == null) {
+                data = frame;
+                binary = this.binary;
+            } else {
+                MessageFraming.Message message = receiveFraming.onFrame(frame);
+                if (message == null) {
+                    continue;
+                }
+                data = message.data;
+                binary = message.binary;
+            }
+            int size = data.remaining();
+            aggregator.add(
+                binary ? "binary" : "text",
+                decode(data, binary),
+                size);
+        }
+        bh.consume(webRTCModule.lastEventParams);
+    }
+
+    private String decode(ByteBuffer data, boolean binary) {
+        return binary ? codec.encodeBase64(data) : codec.decodeText(data);
+    }
+}
@@ -0,0 +1,76 @@
+package com.oney.WebRTCModule;
+
+import android.util.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decoding of a received message in
+ * <tt>DataChannelObserver.onMessage</tt>: the pooled {@link MessageCodec}
+ * against what it replaced, which copied the direct buffer of every message
+ * into a fresh array and decoded that with a <tt>Charset</tt> looked up per
+ * message. Compare <tt>gc.alloc.rate.norm</tt>: the bytes allocated per
+ * message.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({ "16", "256", "4096", "65536", "262144" })
+    int size;
+
+    @Param({ "text", "binary" })
+    String type;
+
+    private boolean binary;
+    private ByteBuffer data;
+    private MessageCodec codec;
+
+    @Setup
+    public void setUp() {
+        binary = type.equals("binary");
+        data
+            = Payloads.direct(
+                ByteBuffer.wrap(Payloads.bytes(size, binary)));
+        codec = new MessageCodec();
+    }
+
+    @Benchmark
+    public String pooled() {
+        return binary ? codec.encodeBase64(data) : codec.decodeText(data);
+    }
+
+    @Benchmark
+    public String copying() {
+        byte[] bytes;
+        if (data.hasArray()) {
+            bytes = data.array();
+        } else {
+            bytes = new byte[data.remaining()];
+            data.get(bytes);
+            // Rewinds the buffer, which the old code used up, for the next
+            // invocation.
+            data.rewind();
+        }
+        return binary
+            ? Base64.encodeToString(bytes, Base64.NO_WRAP)
+            : new String(bytes, Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.oney.WebRTCModule;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * The messages the benchmarks send and receive: JSON-like ASCII text or
+ * random bytes of a given size, reproducible across runs.
+ */
+final class Payloads {
+    private static final String TEXT
+        = "{\"seq\":12345,\"op\":\"cursor\",\"x\":0.4375,\"y\":0.8125,"
+            + "\"user\":\"d5b8e1c0\"}";
+
+    private Payloads() {
+    }
+
+    static byte[] bytes(int size, boolean binary) {
+        byte[] bytes = new byte[size];
+        if (binary) {
+            new Random(size).nextBytes(bytes);
+        } else {
+            byte[] text = TEXT.getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < size; i++) {
+                bytes[i] = text[i % text.length];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the message as JavaScript passes it over the bridge.
+     */
+    static String bridgeString(int size, boolean binary) {
+        byte[] bytes = bytes(size, binary);
+        return binary
+            ? Base64.getEncoder().encodeToString(bytes)
+            : new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns a direct buffer holding a copy of the given bytes, which is
+     * what libwebrtc hands to <tt>DataChannel.Observer.onMessage</tt>.
+     */
+    static ByteBuffer direct(ByteBuffer bytes) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.remaining());
+        direct.put(bytes.duplicate());
+        direct.flip();
+        return direct;
+    }
+}
@@ -0,0 +1,210 @@
+package com.oney.WebRTCModule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.webrtc.StatsReport;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The serialization of the legacy stats of a PeerConnection in
+ * <tt>PeerConnectionObserver.statsToJSON</tt>: through the reused
+ * {@link StatsJsonWriter} against the <tt>StringBuilder</tt> cached in a
+ * <tt>SoftReference</tt> it replaced, which did not escape strings. The
+ * reports are those of a call with the given number of audio and video
+ * track pairs over 4 candidate pairs.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatsJsonBenchmark {
+    @Param({ "1", "4", "16" })
+    int tracks;
+
+    private StatsReport[] reports;
+    private final StatsJsonWriter writer = new StatsJsonWriter();
+    private SoftReference<StringBuilder> statsToJSONStringBuilder
+        = new SoftReference<>(null);
+
+    @Setup
+    public void setUp() {
+        List<StatsReport> reports = new ArrayList<>();
+        double timestamp = 1602000000123.456;
+        for (int i = 0; i < tracks; i++) {
+            reports.add(ssrc("audio", i, timestamp, "send"));
+            reports.add(ssrc("audio", i, timestamp, "recv"));
+            reports.add(ssrc("video", i, timestamp, "send"));
+            reports.add(ssrc("video", i, timestamp, "recv"));
+        }
+        for (int i = 0; i < 4; i++) {
+            reports.add(
+                report(
+                    "Conn-audio-1-" + i,
+                    "googCandidatePair",
+                    timestamp,
+                    "googActiveConnection", i == 0 ? "true" : "false",
+                    "googLocalAddress", "192.168.1.23:5" + i + "123",
+                    "googRemoteAddress", "203.0.113.7:6" + i + "321",
+                    "googLocalCandidateType", "local",
+                    "googRemoteCandidateType", "stun",
+                    "googTransportType", "udp",
+                    "googRtt", "41",
+                    "bytesSent", "12345678",
+                    "bytesReceived", "23456789",
+                    "packetsSent", "45678",
+                    "requestsSent", "12",
+                    "responsesReceived", "12"));
+        }
+        reports.add(
+            report(
+                "bweforvideo",
+                "VideoBwe",
+                timestamp,
+                "googAvailableSendBandwidth", "1534289",
+                "googAvailableReceiveBandwidth", "2468013",
+                "googTargetEncBitrate", "1200000",
+                "googActualEncBitrate", "1187654",
+                "googRetransmitBitrate", "0",
+                "googTransmitBitrate", "1254321",
+                "googBucketDelay", "4"));
+        this.reports = reports.toArray(new StatsReport[0]);
+    }
+
+    @Benchmark
+    public String writer() {
+        StatsJsonWriter writer = this.writer;
+        synchronized (writer) {
+            writer.beginArray();
+            for (StatsReport report : reports) {
+                writer.beginObject()
+                    .literalName("id").value(report.id)
+                    .literalName("type").value(report.type)
+                    .literalName("timestamp").valueAsDouble(report.timestamp)
+                    .literalName("values").beginArray();
+                for (StatsReport.Value v : report.values) {
+                    writer.beginObject()
+                        .name(v.name).value(v.value)
+                        .endObject();
+                }
+                writer.endArray().endObject();
+            }
+            writer.endArray();
+            return writer.finish();
+        }
+    }
+
+    /**
+     * The implementation of <tt>statsToJSON</tt> before
+     * {@link StatsJsonWriter}.
+     */
+    @Benchmark
+    public String softReference() {
+        StringBuilder s = statsToJSONStringBuilder.get();
+        if (s == null) {
+            s = new StringBuilder();
+            statsToJSONStringBuilder = new SoftReference(s);
+        }
+
+        s.append('[');
+        final int reportCount = reports.length;
+        for (int i = 0; i < reportCount; ++i) {
+            StatsReport report = reports[i];
+            if (i != 0) {
+                s.append(',');
+            }
+            s.append("{\"id\":\"").append(report.id)
+                .append("\",\"type\":\"").append(report.type)
+                .append("\",\"timestamp\":").append(report.timestamp)
+                .append(",\"values\":[");
+            StatsReport.Value[] values = report.values;
+            final int valueCount = values.length;
+            for (int j = 0; j < valueCount; ++j) {
+                StatsReport.Value v = values[j];
+                if (j != 0) {
+                    s.append(',');
+                }
+                s.append("{\"").append(v.name).append("\":\"").append(v.value)
+                    .append("\"}");
+            }
+            s.append("]}");
+        }
+        s.append("]");
+
+        String r = s.toString();
+        s.setLength(0);
+
+        return r;
+    }
+
+    private static StatsReport ssrc(
+            String kind,
+            int index,
+            double timestamp,
+            String direction) {
+        String trackId
+            = kind + "-" + index + "-7d0f8a1e-3b2c-4d5e-9f60-1a2b3c4d5e6f";
+        return report(
+            "ssrc_" + (1000000 + index * 4 + kind.length()) + "_" + direction,
+            "ssrc",
+            timestamp,
+            "mediaType", kind,
+            "googTrackId", trackId,
+            "transportId", "Channel-audio-1",
+            "ssrc", String.valueOf(1000000 + index),
+            "googCodecName", kind.equals("audio") ? "opus" : "VP8",
+            direction.equals("send") ? "bytesSent" : "bytesReceived",
+            "9876543",
+            direction.equals("send") ? "packetsSent" : "packetsReceived",
+            "54321",
+            "packetsLost", "12",
+            "googJitterReceived", "3",
+            "googRtt", "41",
+            "audioInputLevel", "1234",
+            "googFrameWidthSent", "1280",
+            "googFrameHeightSent", "720",
+            "googFrameRateSent", "30",
+            "googFirsReceived", "0",
+            "googNacksReceived", "17",
+            "googPlisReceived", "2",
+            "googAdaptationChanges", "0",
+            "googCpuLimitedResolution", "false",
+            "googBandwidthLimitedResolution", "false",
+            "googAvgEncodeMs", "6",
+            "googEncodeUsagePercent", "21",
+            "googHasEnteredLowResolution", "false",
+            "qpSum", "123456",
+            "framesEncoded", "45678");
+    }
+
+    private static StatsReport report(
+            String id,
+            String type,
+            double timestamp,
+            String... namesAndValues) {
+        StatsReport.Value[] values
+            = new StatsReport.Value[namesAndValues.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i]
+                = new StatsReport.Value(
+                    namesAndValues[2 * i],
+                    namesAndValues[2 * i + 1]);
+        }
+        return new StatsReport(id, type, timestamp, values);
+    }
+}
@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * A stand-in for the Android <tt>Handler</tt> which never runs what is posted
+ * to it. The benchmarks drive the timers of the classes under test
+ * explicitly instead.
+ */
+public class Handler {
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable r) {
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        return true;
+    }
+
+    public void removeCallbacks(Runnable r) {
+    }
+}
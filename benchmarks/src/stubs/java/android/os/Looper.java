@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * A stand-in for the Android <tt>Looper</tt>. There is no main thread on the
+ * desktop JVM so all loopers are one and the same.
+ */
+public final class Looper {
+    private static final Looper MAIN = new Looper();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+}
@@ -0,0 +1,40 @@
+package android.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stand-in for the Android <tt>Base64</tt> on top of
+ * <tt>java.util.Base64</tt>. Only the <tt>NO_WRAP</tt> flavor is supported.
+ * Like the original, encoding allocates the encoded bytes and the
+ * <tt>String</tt> made of them.
+ */
+public final class Base64 {
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return encodeToString(input, 0, input.length, flags);
+    }
+
+    public static String encodeToString(
+            byte[] input,
+            int offset,
+            int len,
+            int flags) {
+        ByteBuffer encoded
+            = java.util.Base64.getEncoder().encode(
+                ByteBuffer.wrap(input, offset, len));
+        return new String(
+            encoded.array(),
+            0,
+            encoded.limit(),
+            StandardCharsets.ISO_8859_1);
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getDecoder().decode(str);
+    }
+}
@@ -0,0 +1,35 @@
+package com.facebook.react.bridge;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>WritableArray</tt> backed by an <tt>ArrayList</tt>.
+ */
+public class JavaOnlyArray implements WritableArray {
+    private final ArrayList<Object> list = new ArrayList<>();
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public ReadableMap getMap(int index) {
+        return (ReadableMap) list.get(index);
+    }
+
+    @Override
+    public String getString(int index) {
+        return (String) list.get(index);
+    }
+
+    @Override
+    public void pushString(String value) {
+        list.add(value);
+    }
+
+    @Override
+    public void pushMap(WritableMap value) {
+        list.add(value);
+    }
+}
@@ -0,0 +1,82 @@
+package com.facebook.react.bridge;
+
+import java.util.HashMap;
+
+/**
+ * A <tt>WritableMap</tt> backed by a <tt>HashMap</tt>, like the one React
+ * Native uses in its own tests. It allocates about as much as the native map
+ * it stands in for.
+ */
+public class JavaOnlyMap implements WritableMap {
+    private final HashMap<String, Object> map = new HashMap<>();
+
+    @Override
+    public boolean hasKey(String name) {
+        return map.containsKey(name);
+    }
+
+    @Override
+    public boolean getBoolean(String name) {
+        return (Boolean) map.get(name);
+    }
+
+    @Override
+    public double getDouble(String name) {
+        return ((Number) map.get(name)).doubleValue();
+    }
+
+    @Override
+    public int getInt(String name) {
+        return ((Number) map.get(name)).intValue();
+    }
+
+    @Override
+    public String getString(String name) {
+        return (String) map.get(name);
+    }
+
+    @Override
+    public ReadableMap getMap(String name) {
+        return (ReadableMap) map.get(name);
+    }
+
+    @Override
+    public ReadableArray getArray(String name) {
+        return (ReadableArray) map.get(name);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void putNull(String key) {
+        map.put(key, null);
+    }
+
+    @Override
+    public void putMap(String key, WritableMap value) {
+        map.put(key, value);
+    }
+
+    @Override
+    public void putArray(String key, WritableArray value) {
+        map.put(key, value);
+    }
+}
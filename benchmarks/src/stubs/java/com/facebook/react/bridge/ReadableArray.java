@@ -0,0 +1,9 @@
+package com.facebook.react.bridge;
+
+public interface ReadableArray {
+    int size();
+
+    ReadableMap getMap(int index);
+
+    String getString(int index);
+}
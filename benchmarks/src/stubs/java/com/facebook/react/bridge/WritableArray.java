@@ -0,0 +1,7 @@
+package com.facebook.react.bridge;
+
+public interface WritableArray extends ReadableArray {
+    void pushString(String value);
+
+    void pushMap(WritableMap value);
+}
@@ -0,0 +1,21 @@
+package com.oney.WebRTCModule;
+
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * A stand-in for the native module which keeps the last event it was asked
+ * to send so that the benchmarks can consume it.
+ */
+public class WebRTCModule {
+    static final String TAG = WebRTCModule.class.getCanonicalName();
+
+    public String lastEventName;
+    public WritableMap lastEventParams;
+    public long eventCount;
+
+    public void sendEvent(String eventName, WritableMap params) {
+        lastEventName = eventName;
+        lastEventParams = params;
+        eventCount++;
+    }
+}
@@ -0,0 +1,33 @@
+package org.webrtc;
+
+/**
+ * The legacy stats report of libwebrtc, as delivered to
+ * <tt>StatsObserver.onComplete</tt>.
+ */
+public class StatsReport {
+    public static class Value {
+        public final String name;
+        public final String value;
+
+        public Value(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    public final String id;
+    public final String type;
+    public final double timestamp;
+    public final Value[] values;
+
+    public StatsReport(
+            String id,
+            String type,
+            double timestamp,
+            Value[] values) {
+        this.id = id;
+        this.type = type;
+        this.timestamp = timestamp;
+        this.values = values;
+    }
+}
@@ -8,6 +8,7 @@ import MediaStream from './MediaStream';
 import MediaStreamTrack from './MediaStreamTrack';
 import mediaDevices from './MediaDevices';
 import permissions from './Permissions';
+import eventBatching from './EventBatching';
 
 export {
   RTCPeerConnection,
@@ -18,6 +19,7 @@ export {
   MediaStreamTrack,
   mediaDevices,
   permissions,
+  eventBatching,
   registerGlobals
 };
 